@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.benchmarks;
+
+import com.oetermann.imageclassifier.Util;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * {@link Util#saveMat(String, Mat)} and {@link Util#loadMat(String)} for a
+ * single descriptor file, plus loading a file in the old serialized format.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DescriptorIOBenchmark {
+
+    @Param({"500", "5000"})
+    public int rows;
+
+    @Param({"binary", "float"})
+    public String descriptorKind;
+
+    private File directory;
+    private String file;
+    private String legacyFile;
+    private Mat descriptors;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("descriptor-io").toFile();
+        file = new File(directory, "current.descr").getPath();
+        legacyFile = new File(directory, "legacy.descr").getPath();
+        descriptors = SyntheticImages.descriptors(1, rows, "binary".equals(descriptorKind));
+        Util.saveMat(file, descriptors);
+        writeLegacy(legacyFile, descriptors);
+    }
+
+    private static void writeLegacy(String path, Mat mat) throws IOException {
+        Object data;
+        if (mat.depth() == CvType.CV_8U) {
+            byte[] bytes = new byte[(int) mat.total()];
+            mat.get(0, 0, bytes);
+            data = bytes;
+        } else {
+            float[] floats = new float[(int) mat.total()];
+            mat.get(0, 0, floats);
+            data = floats;
+        }
+        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
+            oos.writeObject(mat.rows());
+            oos.writeObject(mat.cols());
+            oos.writeObject(mat.type());
+            oos.writeObject(data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        descriptors.release();
+        new File(file).delete();
+        new File(legacyFile).delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void saveMat() {
+        Util.saveMat(file, descriptors);
+    }
+
+    @Benchmark
+    public int loadMat() {
+        return release(Util.loadMat(file));
+    }
+
+    @Benchmark
+    public int loadLegacyMat() {
+        return release(Util.loadMat(legacyFile));
+    }
+
+    private static int release(Mat mat) {
+        int rows = mat.rows();
+        mat.release();
+        return rows;
+    }
+
+}
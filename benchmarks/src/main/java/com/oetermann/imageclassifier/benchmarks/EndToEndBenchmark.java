@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.benchmarks;
+
+import com.oetermann.imageclassifier.DescriptorExtractorWrapper;
+import com.oetermann.imageclassifier.ImageClassifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+/**
+ * {@link ImageClassifier#matchName(String, byte[], int)} from encoded JPEG
+ * bytes to image name, against a matcher trained on synthetic images.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    private static final String MATCHER = "synthetic";
+
+    @Param({"ORB"})
+    public String extractorType;
+
+    @Param({"200"})
+    public int images;
+
+    private ImageClassifier imageClassifier;
+    private List<byte[]> queries;
+
+    @Setup
+    public void setup() {
+        imageClassifier = new ImageClassifier(extractorType);
+        DescriptorExtractorWrapper extractor = DescriptorExtractorWrapper.forName(extractorType);
+        List<String> names = new ArrayList<>(images);
+        List<Mat> trainImages = SyntheticImages.images(images, 0, 640, 480);
+        for (int i = 0; i < images; i++) {
+            names.add("image" + i);
+        }
+        imageClassifier.trainMatcher(MATCHER, names, extractor.detectAndCompute(trainImages));
+        queries = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            Mat query = SyntheticImages.query(trainImages.get(i * 7919 % images));
+            queries.add(SyntheticImages.encode(query, ".jpg"));
+            query.release();
+        }
+        trainImages.stream().forEach((image) -> {
+            image.release();
+        });
+    }
+
+    @Benchmark
+    public String matchName(MatcherBenchmark.QueryIndex index) {
+        return imageClassifier.matchName(MATCHER, queries.get(index.next(queries.size())), 10);
+    }
+
+}
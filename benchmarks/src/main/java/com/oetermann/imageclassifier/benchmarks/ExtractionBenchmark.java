@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.benchmarks;
+
+import com.oetermann.imageclassifier.DescriptorExtractorWrapper;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+/**
+ * Keypoint detection and descriptor computation for a single image per
+ * extractor type. SURF is only available in OpenCV builds with the contrib
+ * modules.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionBenchmark {
+
+    @Param({"ORB", "SURF", "BRISK", "AKAZE"})
+    public String extractorType;
+
+    @Param({"640"})
+    public int size;
+
+    private DescriptorExtractorWrapper extractor;
+    private Mat image;
+
+    @Setup
+    public void setup() {
+        extractor = DescriptorExtractorWrapper.forName(extractorType);
+        image = SyntheticImages.image(42, size, size * 3 / 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.release();
+    }
+
+    @Benchmark
+    public int detectAndCompute() {
+        Mat descriptors = extractor.detectAndCompute(image);
+        int rows = descriptors.rows();
+        descriptors.release();
+        return rows;
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.benchmarks;
+
+import com.oetermann.imageclassifier.MatchFinderWrapper;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Mat;
+
+/**
+ * Training and querying a {@link MatchFinderWrapper} at several index sizes,
+ * with binary (ORB like) and float (SURF like) descriptors. The descriptors
+ * are random, so timings reflect the index and not the extractor.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MatcherBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int images;
+
+    @Param({"100"})
+    public int descriptorsPerImage;
+
+    @Param({"binary", "float"})
+    public String descriptorKind;
+
+    private List<String> names;
+    private List<Mat> descriptors;
+    private MatchFinderWrapper matcher;
+    private List<Mat> queries;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        boolean binary = "binary".equals(descriptorKind);
+        names = new ArrayList<>(images);
+        descriptors = new ArrayList<>(images);
+        for (int i = 0; i < images; i++) {
+            names.add("image" + i);
+            descriptors.add(SyntheticImages.descriptors(i, descriptorsPerImage, binary));
+        }
+        matcher = new MatchFinderWrapper(names, descriptors);
+        queries = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            queries.add(SyntheticImages.perturb(descriptors.get(i * 7919 % images), i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        matcher.release();
+        descriptors.stream().forEach((descriptor) -> {
+            descriptor.release();
+        });
+        queries.stream().forEach((query) -> {
+            query.release();
+        });
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public int train() {
+        MatchFinderWrapper trained = new MatchFinderWrapper(names, descriptors);
+        int count = trained.imageCount();
+        trained.release();
+        return count;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int bestMatch(QueryIndex index) {
+        return matcher.bestMatch(queries.get(index.next(queries.size())), 10);
+    }
+
+    @State(Scope.Thread)
+    public static class QueryIndex {
+
+        private int next;
+
+        int next(int count) {
+            next = (next + 1) % count;
+            return next;
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Deterministic test images and descriptors, so benchmark results do not
+ * depend on a local image collection. The same seed always gives the same
+ * pixels.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public final class SyntheticImages {
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * A grayscale image of random rectangles, circles, lines and text, which
+     * gives every detector plenty of corners and blobs.
+     */
+    public static Mat image(long seed, int width, int height) {
+        Random random = new Random(seed);
+        Mat image = new Mat(height, width, CvType.CV_8UC1, new Scalar(random.nextInt(256)));
+        for (int i = 0; i < 60; i++) {
+            Scalar color = new Scalar(random.nextInt(256));
+            Point a = new Point(random.nextInt(width), random.nextInt(height));
+            Point b = new Point(random.nextInt(width), random.nextInt(height));
+            switch (random.nextInt(4)) {
+                case 0:
+                    Imgproc.rectangle(image, a, b, color, random.nextBoolean() ? Imgproc.FILLED : 2);
+                    break;
+                case 1:
+                    Imgproc.circle(image, a, 5 + random.nextInt(Math.max(1, width / 8)), color, random.nextBoolean() ? Imgproc.FILLED : 2);
+                    break;
+                case 2:
+                    Imgproc.line(image, a, b, color, 1 + random.nextInt(4));
+                    break;
+                default:
+                    Imgproc.putText(image, Long.toHexString(random.nextLong()), a, Imgproc.FONT_HERSHEY_SIMPLEX,
+                            0.5 + random.nextDouble() * 2, color, 2);
+                    break;
+            }
+        }
+        return image;
+    }
+
+    public static List<Mat> images(int count, long seed, int width, int height) {
+        List<Mat> images = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            images.add(image(seed + i, width, height));
+        }
+        return images;
+    }
+
+    /**
+     * A slightly smaller and blurred copy, standing in for a photo of a known
+     * image.
+     */
+    public static Mat query(Mat image) {
+        Mat query = new Mat();
+        Imgproc.resize(image, query, new Size(image.cols() * 0.9, image.rows() * 0.9), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.GaussianBlur(query, query, new Size(3, 3), 0);
+        return query;
+    }
+
+    public static byte[] encode(Mat image, String extension) {
+        MatOfByte buffer = new MatOfByte();
+        Imgcodecs.imencode(extension, image, buffer);
+        byte[] data = buffer.toArray();
+        buffer.release();
+        return data;
+    }
+
+    /**
+     * Random descriptors shaped like ORB ({@link CvType#CV_8U}, 32 bytes) or
+     * SURF ({@link CvType#CV_32F}, 64 floats) output.
+     */
+    public static Mat descriptors(long seed, int rows, boolean binary) {
+        Random random = new Random(seed);
+        if (binary) {
+            byte[] data = new byte[rows * 32];
+            random.nextBytes(data);
+            Mat descriptors = new Mat(rows, 32, CvType.CV_8U);
+            descriptors.put(0, 0, data);
+            return descriptors;
+        }
+        float[] data = new float[rows * 64];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) (random.nextGaussian() * 0.1);
+        }
+        Mat descriptors = new Mat(rows, 64, CvType.CV_32F);
+        descriptors.put(0, 0, data);
+        return descriptors;
+    }
+
+    /**
+     * A copy of the descriptors with a little noise, flipping a few bits of
+     * binary descriptors.
+     */
+    public static Mat perturb(Mat descriptors, long seed) {
+        Random random = new Random(seed);
+        Mat copy = descriptors.clone();
+        if (descriptors.depth() == CvType.CV_8U) {
+            byte[] data = new byte[(int) copy.total()];
+            copy.get(0, 0, data);
+            for (int i = 0; i < data.length; i++) {
+                if (random.nextInt(8) == 0) {
+                    data[i] ^= 1 << random.nextInt(8);
+                }
+            }
+            copy.put(0, 0, data);
+        } else {
+            float[] data = new float[(int) copy.total()];
+            copy.get(0, 0, data);
+            for (int i = 0; i < data.length; i++) {
+                data[i] += (float) (random.nextGaussian() * 0.01);
+            }
+            copy.put(0, 0, data);
+        }
+        return copy;
+    }
+
+}
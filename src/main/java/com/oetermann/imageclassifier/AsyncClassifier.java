@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import org.opencv.core.Mat;
+
+/**
+ * Classifies images without blocking the caller. Every query gets a deadline
+ * and can be cancelled through its future; either aborts it at the next
+ * stage, e.g. between detection and search, and frees its thread. At most
+ * maxInFlight queries are admitted, more are rejected right away instead of
+ * piling up behind a busy executor.
+ * <p>
+ * The queries should run on a small pool of platform threads: every thread
+ * keeps its own detector, extractor and scratch buffers, which one virtual
+ * thread per query would create anew each time. Callers may of course wait
+ * on the futures from virtual threads.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class AsyncClassifier implements Closeable {
+
+    private final ImageClassifier imageClassifier;
+    private final Executor executor;
+    private final ExecutorService ownExecutor;
+    private final ScheduledExecutorService timer;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * Runs the queries on one thread per processor.
+     */
+    public AsyncClassifier(ImageClassifier imageClassifier, int maxInFlight) {
+        this(imageClassifier, null, maxInFlight);
+    }
+
+    /**
+     * @param executor runs the queries, or null for one thread per processor
+     * @param maxInFlight queries admitted and not finished yet, including
+     * cancelled ones still running up to their next stage
+     */
+    public AsyncClassifier(ImageClassifier imageClassifier, Executor executor, int maxInFlight) {
+        this.imageClassifier = imageClassifier;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.ownExecutor = executor == null
+                ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), (runnable) -> {
+                    Thread thread = new Thread(runnable, "AsyncClassifier-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                })
+                : null;
+        this.executor = executor == null ? ownExecutor : executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "AsyncClassifier-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Like {@link ImageClassifier#matchName(String, byte[], int)}.
+     *
+     * @param timeoutMillis time until the future completes with a
+     * {@link TimeoutException}, 0 for no limit
+     * @return the name of the best match, completed exceptionally with a
+     * {@link RejectedExecutionException} if too many queries are in flight
+     */
+    public CompletableFuture<String> matchName(String matcherName, byte[] data, int minMatches, long timeoutMillis) {
+        return submit(timeoutMillis, (trace) -> imageClassifier.matchName(matcherName, data, minMatches, trace));
+    }
+
+    /**
+     * Like {@link #matchName(String, byte[], int, long)} for an image file,
+     * which is read on the executor, so reading counts against the timeout.
+     */
+    public CompletableFuture<String> matchNameOfFile(String matcherName, String file, int minMatches, long timeoutMillis) {
+        return submit(timeoutMillis, (trace) -> {
+            byte[] data;
+            try {
+                data = Files.readAllBytes(Paths.get(file));
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            return imageClassifier.matchName(matcherName, data, minMatches, trace);
+        });
+    }
+
+    /**
+     * Like {@link ImageClassifier#matchName(String, Mat, int)}. The image
+     * may be changed by the query and must not be released before the
+     * future completes.
+     */
+    public CompletableFuture<String> matchName(String matcherName, Mat queryImage, int minMatches, long timeoutMillis) {
+        return submit(timeoutMillis, (trace) -> imageClassifier.matchName(matcherName, queryImage, minMatches, trace));
+    }
+
+    /**
+     * Like {@link ImageClassifier#match(String, Mat, int)}, see
+     * {@link #matchName(String, Mat, int, long)}.
+     */
+    public CompletableFuture<Integer> match(String matcherName, Mat queryImage, int minMatches, long timeoutMillis) {
+        return submit(timeoutMillis, (trace) -> imageClassifier.match(matcherName, queryImage, minMatches, trace));
+    }
+
+    private <T> CompletableFuture<T> submit(long timeoutMillis, Function<QueryTrace, T> query) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("Too many classifications in flight"));
+            return result;
+        }
+        long deadline = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+        QueryTrace trace = imageClassifier.newTrace(deadline);
+        try {
+            ScheduledFuture<?> timeout = timeoutMillis <= 0 ? null : timer.schedule(() -> {
+                timeOut(result, timeoutMillis);
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            result.whenComplete((value, failure) -> {
+                if (failure != null) {
+                    trace.cancel();
+                }
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+            });
+            executor.execute(() -> {
+                try {
+                    if (!result.isDone()) {
+                        result.complete(query.apply(trace));
+                    }
+                } catch (CancellationException ex) {
+                    if (trace.isExpired()) {
+                        timeOut(result, timeoutMillis);
+                    } else {
+                        result.completeExceptionally(ex);
+                    }
+                } catch (RuntimeException ex) {
+                    result.completeExceptionally(ex);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            inFlight.decrementAndGet();
+            rejected.increment();
+            result.completeExceptionally(ex);
+        }
+        return result;
+    }
+
+    private void timeOut(CompletableFuture<?> result, long timeoutMillis) {
+        if (result.completeExceptionally(new TimeoutException("Classification took longer than " + timeoutMillis + "ms"))) {
+            timedOut.increment();
+        }
+    }
+
+    /**
+     * @return queries admitted and not finished yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Stops the timer and the own executor, queries already running finish.
+     * A given executor is left to the caller.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of an {@link ImageClassifier}, see
+ * {@link ImageClassifier#enableMetrics()}. Every classified query is recorded
+ * in the {@link MatcherMetrics} of its matcher and passed to the listeners.
+ * Answers from a {@link MatchCache} are counted by the cache.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class ClassifierMetrics implements ClassifierMetricsMXBean {
+
+    public interface Listener {
+
+        /**
+         * Called on the querying thread after every match call, keep it
+         * short.
+         */
+        void queryCompleted(String matcherName, QueryTrace trace);
+    }
+
+    public static final String DEFAULT_JMX_DOMAIN = "com.oetermann.imageclassifier";
+
+    private final MatcherRegistry matchers;
+    private final ConcurrentHashMap<String, MatcherMetrics> matcherMetrics = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final LongAdder unknownMatcherQueries = new LongAdder();
+    private String jmxDomain;
+
+    ClassifierMetrics(MatcherRegistry matchers) {
+        this.matchers = matchers;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the metrics of the matcher, or null if it has not been queried
+     */
+    public MatcherMetrics getMatcherMetrics(String matcherName) {
+        return matcherMetrics.get(matcherName);
+    }
+
+    @Override
+    public Set<String> getMatcherNames() {
+        return new HashSet<>(matcherMetrics.keySet());
+    }
+
+    @Override
+    public long getUnknownMatcherQueries() {
+        return unknownMatcherQueries.sum();
+    }
+
+    /**
+     * @return matchers in memory, registered ones that are not loaded yet or
+     * have been evicted are not counted
+     */
+    @Override
+    public int getLoadedMatchers() {
+        return matchers.loadedCount();
+    }
+
+    @Override
+    public long getMatcherMemoryBytes() {
+        return matchers.memoryUsage();
+    }
+
+    @Override
+    public long getMatcherLoads() {
+        return matchers.getLoads();
+    }
+
+    @Override
+    public long getMatcherLoadFailures() {
+        return matchers.getLoadFailures();
+    }
+
+    @Override
+    public long getMatcherEvictions() {
+        return matchers.getEvictions();
+    }
+
+    @Override
+    public double getMeanMatcherLoadMillis() {
+        return matchers.getLoadMicros().getMean() / 1000;
+    }
+
+    @Override
+    public double getMaxMatcherLoadMillis() {
+        return matchers.getLoadMicros().getMax() / 1000.0;
+    }
+
+    /**
+     * @return the time registered matchers took to load, in microseconds
+     */
+    public Histogram getMatcherLoadMicros() {
+        return matchers.getLoadMicros();
+    }
+
+    void record(String matcherName, QueryTrace trace) {
+        MatcherMetrics metrics = matcherMetrics.get(matcherName);
+        if (metrics == null) {
+            metrics = matcherMetrics.computeIfAbsent(matcherName, (name) -> {
+                MatcherMetrics created = new MatcherMetrics(name, matchers);
+                register(created);
+                return created;
+            });
+        }
+        metrics.record(trace);
+        for (Listener listener : listeners) {
+            listener.queryCompleted(matcherName, trace);
+        }
+    }
+
+    void unknownMatcher() {
+        unknownMatcherQueries.increment();
+    }
+
+    void removeMatcher(String matcherName) {
+        MatcherMetrics metrics = matcherMetrics.remove(matcherName);
+        if (metrics != null) {
+            unregister(metrics);
+        }
+    }
+
+    @Override
+    public void reset() {
+        unknownMatcherQueries.reset();
+        matchers.resetCounters();
+        matcherMetrics.values().stream().forEach((metrics) -> {
+            metrics.reset();
+        });
+    }
+
+    public void registerMBeans() {
+        registerMBeans(DEFAULT_JMX_DOMAIN);
+    }
+
+    /**
+     * Registers this object as {@code <domain>:type=ClassifierMetrics} and
+     * every matcher as {@code <domain>:type=MatcherMetrics,name=<matcher>}
+     * with the platform MBean server. Use a distinct domain for every
+     * classifier in the same JVM.
+     */
+    public synchronized void registerMBeans(String domain) {
+        unregisterMBeans();
+        jmxDomain = domain;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName(domain + ":type=ClassifierMetrics"));
+        } catch (JMException ex) {
+            System.err.println("ERROR: Could not register metrics MBean: " + ex.getMessage());
+        }
+        matcherMetrics.values().stream().forEach((metrics) -> {
+            register(metrics);
+        });
+    }
+
+    public synchronized void unregisterMBeans() {
+        if (jmxDomain == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(new ObjectName(jmxDomain + ":type=ClassifierMetrics"));
+        } catch (JMException ex) {
+            System.err.println("ERROR: Could not unregister metrics MBean: " + ex.getMessage());
+        }
+        matcherMetrics.values().stream().forEach((metrics) -> {
+            unregister(metrics);
+        });
+        jmxDomain = null;
+    }
+
+    private synchronized void register(MatcherMetrics metrics) {
+        if (jmxDomain == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = objectName(metrics);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(metrics, name);
+            }
+        } catch (JMException ex) {
+            System.err.println("ERROR: Could not register metrics MBean of matcher: " + metrics.getName());
+        }
+    }
+
+    private synchronized void unregister(MatcherMetrics metrics) {
+        if (jmxDomain == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(metrics));
+        } catch (JMException ex) {
+            System.err.println("ERROR: Could not unregister metrics MBean of matcher: " + metrics.getName());
+        }
+    }
+
+    private ObjectName objectName(MatcherMetrics metrics) throws JMException {
+        return new ObjectName(jmxDomain + ":type=MatcherMetrics,name=" + ObjectName.quote(metrics.getName()));
+    }
+
+}
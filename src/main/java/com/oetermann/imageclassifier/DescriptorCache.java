@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A directory of .descr files kept in step with directories of images. A
+ * {@link DescriptorManifest} records size, modification time, content hash
+ * and extractor configuration of every image, so a refresh only computes
+ * descriptors of new or changed images and deletes those of removed ones.
+ * Descriptor files mirror the images' paths relative to their input
+ * directory. {@link #watch} keeps the cache current as files change.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class DescriptorCache {
+
+    public static final String[] IMAGE_ENDINGS = {".jpg", ".jpeg", ".png", ".gif"};
+
+    private static final long QUIET_MILLIS = 500, MAX_DELAY_MILLIS = 5000;
+
+    public static class Refresh {
+
+        /**
+         * Descriptor files written
+         */
+        public final List<String> saved = new ArrayList<>();
+        /**
+         * Descriptor files deleted along with their images
+         */
+        public final List<String> removed = new ArrayList<>();
+        public int unchanged, failed;
+
+        @Override
+        public String toString() {
+            return saved.size() + " computed, " + removed.size() + " removed, " + unchanged + " unchanged, " + failed + " failed";
+        }
+    }
+
+    private final DescriptorExtractorWrapper prototype;
+    private final Path outputDir;
+    private final boolean grayscale;
+    private final DescriptorManifest manifest;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private Quantization storage;
+
+    public DescriptorCache(DescriptorExtractorWrapper prototype, String outputPath, boolean grayscale) {
+        this.prototype = prototype;
+        this.outputDir = Paths.get(outputPath).toAbsolutePath().normalize();
+        this.grayscale = grayscale;
+        this.manifest = DescriptorManifest.load(outputDir.resolve(DescriptorManifest.FILE_NAME));
+    }
+
+    public DescriptorCache setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+        return this;
+    }
+
+    /**
+     * Changing the storage recomputes all descriptors at the next refresh.
+     *
+     * @param storage how float descriptors are compressed, or null for none
+     */
+    public synchronized DescriptorCache setStorage(Quantization storage) {
+        this.storage = storage;
+        return this;
+    }
+
+    /**
+     * Taken from the extractor when a refresh starts, so that changing the
+     * prototype's settings afterwards recomputes the descriptors.
+     */
+    private String config(DescriptorExtractorWrapper extractor) {
+        String config = "detector=" + extractor.getDetectorType() + ",extractor=" + extractor.getExtractorType()
+                + ",keypointBudget=" + extractor.getKeypointBudget() + ",grayscale=" + grayscale
+                + ",preprocessor=" + extractor.getPreprocessor();
+        return storage == null ? config : config + ",storage=" + storage;
+    }
+
+    /**
+     * Brings the cache up to date with the images below the input paths.
+     * Cached images below them that no longer exist are removed, other
+     * entries are left alone.
+     */
+    public synchronized Refresh refresh(List<String> inputPaths, boolean recursive) throws InterruptedException {
+        Refresh refresh = new Refresh();
+        List<Path> roots = roots(inputPaths);
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        compute(new WalkingIterator(roots, recursive, seen), refresh);
+        for (String image : new ArrayList<>(manifest.entries.keySet())) {
+            Path path = Paths.get(image);
+            boolean below = roots.stream().anyMatch((root) -> recursive ? path.startsWith(root) : root.equals(path.getParent()));
+            if (below && !seen.contains(image)) {
+                remove(image, refresh);
+            }
+        }
+        save();
+        return refresh;
+    }
+
+    private static List<Path> roots(List<String> inputPaths) {
+        return inputPaths.stream().map((inputPath) -> {
+            Path path = Paths.get(inputPath).toAbsolutePath().normalize();
+            return Files.isDirectory(path) ? path : path.getParent();
+        }).distinct().collect(Collectors.toList());
+    }
+
+    /**
+     * Computes the descriptors of every image the iterator returns that is
+     * not up to date, given as pairs of input directory and image.
+     */
+    private void compute(Iterator<Path[]> images, Refresh refresh) throws InterruptedException {
+        // The same settings for the whole refresh, even if the prototype changes meanwhile
+        DescriptorExtractorWrapper extractor = prototype.copy();
+        try {
+            compute(images, extractor, config(extractor), refresh);
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private void compute(Iterator<Path[]> images, DescriptorExtractorWrapper extractor, String config, Refresh refresh)
+            throws InterruptedException {
+        Map<String, DescriptorManifest.Entry> pending = new ConcurrentHashMap<>();
+        AtomicInteger unchanged = new AtomicInteger();
+        Iterable<String> outdated = () -> new Iterator<String>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && images.hasNext()) {
+                    Path[] image = images.next();
+                    if (isOutdated(image[0], image[1], config, pending)) {
+                        next = image[1].toString();
+                    } else {
+                        unchanged.incrementAndGet();
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String image = next;
+                next = null;
+                return image;
+            }
+        };
+        new DescriptorPipeline(extractor)
+                .setWorkers(workers)
+                .setStorage(storage)
+                .setSaveListener((image, descriptorFile) -> {
+                    DescriptorManifest.Entry old = manifest.entries.put(image, pending.remove(image));
+                    if (old != null && !old.descriptorFile.equals(descriptorFile)) {
+                        deleteQuietly(old.descriptorFile);
+                    }
+                    refresh.saved.add(descriptorFile);
+                })
+                .run(outdated, (image) -> pending.get(image).descriptorFile, grayscale);
+        refresh.unchanged += unchanged.get();
+        refresh.failed += pending.size();
+    }
+
+    /**
+     * Size and modification time decide most cases without reading the
+     * image. Only if they changed is the content hashed, so touched but
+     * unchanged files are not recomputed.
+     */
+    private boolean isOutdated(Path root, Path image, String config, Map<String, DescriptorManifest.Entry> pending) {
+        String key = image.toString();
+        String descriptorFile = outputDir.resolve(root.relativize(image).toString() + ".descr").toString();
+        try {
+            long size = Files.size(image);
+            long modified = Files.getLastModifiedTime(image).toMillis();
+            DescriptorManifest.Entry old = manifest.entries.get(key);
+            boolean reusable = old != null && old.config.equals(config) && Files.isRegularFile(Paths.get(old.descriptorFile));
+            if (reusable && old.size == size && old.modified == modified) {
+                return false;
+            }
+            long hash = Util.hash64(Files.readAllBytes(image));
+            if (reusable && old.size == size && old.hash == hash) {
+                manifest.entries.put(key, new DescriptorManifest.Entry(size, modified, hash, config, old.descriptorFile));
+                return false;
+            }
+            pending.put(key, new DescriptorManifest.Entry(size, modified, hash, config, descriptorFile));
+            return true;
+        } catch (IOException ex) {
+            // Recomputed rather than trusting the old entry, an unknown size never matches the next refresh
+            System.err.println("ERROR: Could not read file: " + image);
+            pending.put(key, new DescriptorManifest.Entry(-1, -1, 0, config, descriptorFile));
+            return true;
+        }
+    }
+
+    private void remove(String image, Refresh refresh) {
+        DescriptorManifest.Entry entry = manifest.entries.remove(image);
+        if (entry != null) {
+            deleteQuietly(entry.descriptorFile);
+            refresh.removed.add(entry.descriptorFile);
+        }
+    }
+
+    private static void deleteQuietly(String file) {
+        try {
+            Files.deleteIfExists(Paths.get(file));
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not delete file: " + file);
+        }
+    }
+
+    private void save() {
+        try {
+            manifest.save();
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not save manifest to: " + outputDir);
+        }
+    }
+
+    /**
+     * Refreshes once, then watches the input directories and refreshes
+     * changed images after changes have settled for a moment.
+     *
+     * @param listener receives every refresh on the watching thread, may be
+     * null
+     * @return stops watching when closed
+     */
+    public Closeable watch(List<String> inputPaths, boolean recursive, Consumer<Refresh> listener) throws IOException, InterruptedException {
+        List<Path> roots = roots(inputPaths);
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        Map<WatchKey, Path> directories = new HashMap<>();
+        try {
+            for (Path root : roots) {
+                register(watchService, root, recursive, directories);
+            }
+        } catch (IOException ex) {
+            watchService.close();
+            throw ex;
+        }
+        Refresh initial = refresh(inputPaths, recursive);
+        if (listener != null) {
+            listener.accept(initial);
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                for (;;) {
+                    Set<Path> changed = new LinkedHashSet<>();
+                    boolean overflow = collect(watchService.take(), directories, changed);
+                    long deadline = System.currentTimeMillis() + MAX_DELAY_MILLIS;
+                    for (WatchKey key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                            key != null && System.currentTimeMillis() < deadline;
+                            key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) {
+                        overflow |= collect(key, directories, changed);
+                    }
+                    Refresh refresh;
+                    if (overflow) {
+                        refresh = refresh(inputPaths, recursive);
+                    } else {
+                        for (Path path : changed) {
+                            if (recursive && Files.isDirectory(path)) {
+                                register(watchService, path, true, directories);
+                            }
+                        }
+                        refresh = refreshChanged(roots, recursive, changed);
+                    }
+                    if (listener != null) {
+                        listener.accept(refresh);
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                // Closed
+            } catch (IOException ex) {
+                System.err.println("ERROR: Stopped watching " + inputPaths + ": " + ex.getMessage());
+            }
+        }, "DescriptorCache-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return () -> {
+            watchService.close();
+            thread.interrupt();
+        };
+    }
+
+    private static void register(WatchService watchService, Path directory, boolean recursive, Map<WatchKey, Path> directories) throws IOException {
+        try (Stream<Path> tree = recursive ? Files.walk(directory, FileVisitOption.FOLLOW_LINKS) : Stream.of(directory)) {
+            for (Path path : (Iterable<Path>) tree::iterator) {
+                if (Files.isDirectory(path)) {
+                    directories.put(path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), path);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether events were lost
+     */
+    private static boolean collect(WatchKey key, Map<WatchKey, Path> directories, Set<Path> changed) {
+        boolean overflow = false;
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+                overflow = true;
+            } else {
+                changed.add(directory.resolve((Path) event.context()).normalize());
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return overflow;
+    }
+
+    private synchronized Refresh refreshChanged(List<Path> roots, boolean recursive, Set<Path> changed) throws InterruptedException, IOException {
+        Refresh refresh = new Refresh();
+        List<Path[]> images = new ArrayList<>();
+        for (Path path : changed) {
+            Path root = roots.stream().filter(path::startsWith).findFirst().orElse(null);
+            if (root == null) {
+                continue;
+            }
+            if (Files.isDirectory(path)) {
+                try (Stream<String> files = Util.walkFiles(path.toString(), recursive, IMAGE_ENDINGS)) {
+                    files.forEach((file) -> {
+                        images.add(new Path[]{root, Paths.get(file)});
+                    });
+                }
+            } else if (Files.isRegularFile(path)) {
+                if (Arrays.stream(IMAGE_ENDINGS).anyMatch(path.toString()::endsWith)) {
+                    images.add(new Path[]{root, path});
+                }
+            } else {
+                String deleted = path.toString();
+                for (String image : new ArrayList<>(manifest.entries.keySet())) {
+                    if (image.equals(deleted) || Paths.get(image).startsWith(path)) {
+                        remove(image, refresh);
+                    }
+                }
+            }
+        }
+        compute(images.iterator(), refresh);
+        save();
+        return refresh;
+    }
+
+    /**
+     * Lazily walks the roots one after another, recording every image seen.
+     */
+    private static class WalkingIterator implements Iterator<Path[]> {
+
+        private final Iterator<Path> roots;
+        private final boolean recursive;
+        private final Set<String> seen;
+        private Path root;
+        private Stream<String> files;
+        private Iterator<String> current = Collections.emptyIterator();
+
+        WalkingIterator(List<Path> roots, boolean recursive, Set<String> seen) {
+            this.roots = roots.iterator();
+            this.recursive = recursive;
+            this.seen = seen;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!current.hasNext()) {
+                if (files != null) {
+                    files.close();
+                    files = null;
+                }
+                if (!roots.hasNext()) {
+                    return false;
+                }
+                root = roots.next();
+                files = Util.walkFiles(root.toString(), recursive, IMAGE_ENDINGS);
+                current = files.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public Path[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Path image = Paths.get(current.next()).toAbsolutePath().normalize();
+            seen.add(image.toString());
+            return new Path[]{root, image};
+        }
+    }
+
+}
@@ -16,10 +16,13 @@
  */
 package com.oetermann.imageclassifier;
 
+import com.oetermann.imageclassifier.QueryTrace.Stage;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.features2d.DescriptorExtractor;
@@ -33,10 +36,19 @@ import org.opencv.imgproc.Imgproc;
  */
 public class DescriptorExtractorWrapper {
 
+    private static final int KEYPOINT_FIELDS = 7, RESPONSE = 4;
+
+    private final int detectorType, extractorType;
     private final FeatureDetector featureDetector;
     private final DescriptorExtractor descriptorExtractor;
+    private final MatOfKeyPoint keypoints = MatTracker.track(new MatOfKeyPoint(), "DescriptorExtractorWrapper.keypoints");
+    private final Mat queryDescriptors = MatTracker.track(new Mat(), "DescriptorExtractorWrapper.queryDescriptors");
+    private Preprocessor preprocessor;
+    private int keypointBudget;
 
     public DescriptorExtractorWrapper(int detectorType, int extractorType) {
+        this.detectorType = detectorType;
+        this.extractorType = extractorType;
         featureDetector = FeatureDetector.create(detectorType);
         descriptorExtractor = DescriptorExtractor.create(extractorType);
     }
@@ -45,17 +57,90 @@ public class DescriptorExtractorWrapper {
         this(FeatureDetector.ORB, FeatureDetector.ORB);
     }
 
+    /**
+     * @param extractorType ORB, SURF, BRISK or AKAZE, anything else is ORB
+     */
+    public static DescriptorExtractorWrapper forName(String extractorType) {
+        switch (extractorType) {
+            case "SURF":
+                return new DescriptorExtractorWrapper(FeatureDetector.SURF, DescriptorExtractor.SURF);
+            case "BRISK":
+                return new DescriptorExtractorWrapper(FeatureDetector.BRISK, DescriptorExtractor.BRISK);
+            case "AKAZE":
+                return new DescriptorExtractorWrapper(FeatureDetector.AKAZE, DescriptorExtractor.AKAZE);
+            case "ORB":
+            default:
+                return new DescriptorExtractorWrapper(FeatureDetector.ORB, DescriptorExtractor.ORB);
+        }
+    }
+
+    /**
+     * Detectors and extractors are not thread-safe, so every thread needs its
+     * own wrapper.
+     */
+    public DescriptorExtractorWrapper copy() {
+        return new DescriptorExtractorWrapper(detectorType, extractorType)
+                .setPreprocessor(preprocessor)
+                .setKeypointBudget(keypointBudget);
+    }
+
+    /**
+     * Applied to every image before detection, changing the image in place.
+     *
+     * @param preprocessor the steps to run, or null for none
+     */
+    public DescriptorExtractorWrapper setPreprocessor(Preprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+        return this;
+    }
+
+    public Preprocessor getPreprocessor() {
+        return preprocessor;
+    }
+
+    /**
+     * Keeps only the keypoints with the strongest responses, bounding the
+     * number of descriptors per image.
+     *
+     * @param keypointBudget keypoints per image, 0 for no limit
+     */
+    public DescriptorExtractorWrapper setKeypointBudget(int keypointBudget) {
+        this.keypointBudget = Math.max(0, keypointBudget);
+        return this;
+    }
+
+    public int getKeypointBudget() {
+        return keypointBudget;
+    }
+
+    public int getDetectorType() {
+        return detectorType;
+    }
+
+    public int getExtractorType() {
+        return extractorType;
+    }
+
+    public Mat readImage(String file, boolean grayscale) {
+        Mat mat = Imgcodecs.imread(file);
+        if (mat.dims() > 0 && mat.cols() > 0 && mat.rows() > 0) {
+            if (grayscale) {
+                Imgproc.cvtColor(mat, mat, Imgproc.COLOR_RGB2GRAY);
+            }
+            return mat;
+        }
+        mat.release();
+        return null;
+    }
+
     public List<Mat> readImages(List<String> files, boolean grayscale) {
         List<Mat> images = new ArrayList<>();
         Mat mat;
 
         for (ListIterator<String> it = files.listIterator(); it.hasNext();) {
             String file = it.next();
-            mat = Imgcodecs.imread(file);
-            if (mat.dims() > 0 && mat.cols() > 0 && mat.rows() > 0) {
-                if (grayscale) {
-                    Imgproc.cvtColor(mat, mat, Imgproc.COLOR_RGB2GRAY);
-                }
+            mat = readImage(file, grayscale);
+            if (mat != null) {
                 images.add(mat);
             } else {
                 it.remove();
@@ -75,23 +160,114 @@ public class DescriptorExtractorWrapper {
     }
 
     public List<Mat> detectAndCompute(List<Mat> images) {
-        List<MatOfKeyPoint> keypoints = new ArrayList<>();
-        featureDetector.detect(images, keypoints);
+        return detectAndCompute(images, QueryTrace.NONE);
+    }
+
+    List<Mat> detectAndCompute(List<Mat> images, QueryTrace trace) {
+        long start = trace.start();
+        if (preprocessor != null) {
+            images.stream().filter((image) -> !image.empty()).forEach((image) -> {
+                preprocessor.apply(image);
+            });
+            start = trace.lap(Stage.PREPROCESS, start);
+        }
+        List<MatOfKeyPoint> keypointsPerImage = new ArrayList<>();
+        featureDetector.detect(images, keypointsPerImage);
+        if (keypointBudget > 0) {
+            keypointsPerImage.stream().forEach((keypoint) -> {
+                retainStrongest(keypoint, keypointBudget);
+            });
+        }
+        start = trace.lap(Stage.DETECT, start);
         List<Mat> descriptors = new ArrayList<>();
-        descriptorExtractor.compute(images, keypoints, descriptors);
-        keypoints.stream().forEach((keypoint) -> {
+        descriptorExtractor.compute(images, keypointsPerImage, descriptors);
+        trace.lap(Stage.COMPUTE, start);
+        keypointsPerImage.stream().forEach((keypoint) -> {
+            trace.addKeypoints(keypoint.rows());
             keypoint.release();
         });
         return descriptors;
     }
 
     public Mat detectAndCompute(Mat image) {
-        MatOfKeyPoint keypoint = new MatOfKeyPoint();
-        featureDetector.detect(image, keypoint);
-        Mat descriptor = new Mat();
-        descriptorExtractor.compute(image, keypoint, descriptor);
-        keypoint.release();
-        return descriptor;
+        return detectAndCompute(image, QueryTrace.NONE);
+    }
+
+    Mat detectAndCompute(Mat image, QueryTrace trace) {
+        return detectAndCompute(image, new Mat(), trace);
+    }
+
+    /**
+     * Computes into a Mat owned by this wrapper, which is reused and only
+     * valid until the next call. Nothing is allocated once the Mats have
+     * grown to the largest image seen.
+     */
+    Mat detectAndComputeQuery(Mat image, QueryTrace trace) {
+        return detectAndCompute(image, queryDescriptors, trace);
+    }
+
+    private Mat detectAndCompute(Mat image, Mat descriptors, QueryTrace trace) {
+        long start = trace.start();
+        if (preprocessor != null && !image.empty()) {
+            preprocessor.apply(image);
+            start = trace.lap(Stage.PREPROCESS, start);
+        }
+        featureDetector.detect(image, keypoints);
+        if (keypointBudget > 0) {
+            retainStrongest(keypoints, keypointBudget);
+        }
+        start = trace.lap(Stage.DETECT, start);
+        trace.checkpoint();
+        descriptorExtractor.compute(image, keypoints, descriptors);
+        trace.lap(Stage.COMPUTE, start);
+        trace.addKeypoints(keypoints.rows());
+        return descriptors;
+    }
+
+    /**
+     * Keeps the budget keypoints with the highest response, in their original
+     * order. The keypoints are read and written as raw rows of x, y, size,
+     * angle, response, octave and class id.
+     */
+    static void retainStrongest(MatOfKeyPoint keypoints, int budget) {
+        int rows = keypoints.rows();
+        if (rows <= budget) {
+            return;
+        }
+        float[] data = new float[rows * KEYPOINT_FIELDS];
+        keypoints.get(0, 0, data);
+        float[] responses = new float[rows];
+        for (int row = 0; row < rows; row++) {
+            responses[row] = data[row * KEYPOINT_FIELDS + RESPONSE];
+        }
+        Arrays.sort(responses);
+        float threshold = responses[rows - budget];
+        int above = 0;
+        for (int row = 0; row < rows; row++) {
+            if (data[row * KEYPOINT_FIELDS + RESPONSE] > threshold) {
+                above++;
+            }
+        }
+        int ties = budget - above;
+        int kept = 0;
+        for (int row = 0; row < rows; row++) {
+            float response = data[row * KEYPOINT_FIELDS + RESPONSE];
+            if (response > threshold || (response == threshold && ties-- > 0)) {
+                System.arraycopy(data, row * KEYPOINT_FIELDS, data, kept * KEYPOINT_FIELDS, KEYPOINT_FIELDS);
+                kept++;
+            }
+        }
+        keypoints.create(kept, 1, CvType.CV_32FC(KEYPOINT_FIELDS));
+        keypoints.put(0, 0, Arrays.copyOf(data, kept * KEYPOINT_FIELDS));
+    }
+
+    /**
+     * Frees the Mats this wrapper reuses between calls. It can still be used
+     * afterwards, they are reallocated as needed.
+     */
+    public void release() {
+        MatTracker.release(keypoints);
+        MatTracker.release(queryDescriptors);
     }
 
 }
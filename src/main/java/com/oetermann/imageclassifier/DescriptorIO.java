@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Binary format of a single .descr file. All values are little endian:
+ * <pre>
+ * magic "DESC" | int version | int rows | int cols | int type | raw data
+ * </pre>
+ * Version 2 files hold compressed {@link CvType#CV_32F} descriptors, read
+ * back as floats:
+ * <pre>
+ * magic "DESC" | int 2 | int rows | int cols | int type | int storage | data
+ * FP16: rows * cols halves
+ * INT8: float[cols] min | float[cols] scale | rows * cols bytes
+ * </pre>
+ * Files written by the old {@code ObjectOutputStream} based format are still
+ * recognized by their serialization stream header and read the old way.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public final class DescriptorIO {
+
+    public static final int VERSION = 1, COMPRESSED_VERSION = 2;
+    public static final int HEADER_SIZE = 20;
+
+    static final int MAGIC = 0x43534544; // "DESC" read as little endian int
+    static final short LEGACY_MAGIC = (short) 0xACED;
+
+    private DescriptorIO() {
+    }
+
+    public static void write(String path, Mat mat) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + dataSize(mat)).order(ByteOrder.LITTLE_ENDIAN);
+        writeHeader(buffer, mat);
+        writeData(buffer, mat);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Writes float descriptors compressed, other descriptors as they are.
+     *
+     * @param storage {@link Quantization#FP16}, {@link Quantization#INT8} or
+     * null for no compression
+     */
+    public static void write(String path, Mat mat, Quantization storage) throws IOException {
+        if (storage == null || mat.type() != CvType.CV_32F || mat.empty()) {
+            write(path, mat);
+            return;
+        }
+        if (!storage.isStorable()) {
+            throw new IllegalArgumentException("Cannot store descriptor files as " + storage);
+        }
+        int rows = mat.rows(), cols = mat.cols();
+        float[] data = new float[rows * cols];
+        mat.get(0, 0, data);
+        int size = storage == Quantization.FP16 ? data.length * 2 : cols * 8 + data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 4 + size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(COMPRESSED_VERSION);
+        buffer.putInt(rows);
+        buffer.putInt(cols);
+        buffer.putInt(mat.type());
+        buffer.putInt(storage.ordinal());
+        if (storage == Quantization.FP16) {
+            for (float value : data) {
+                buffer.putShort(Float16.fromFloat(value));
+            }
+        } else {
+            float[] min = new float[cols], scale = new float[cols];
+            Arrays.fill(min, Float.MAX_VALUE);
+            Arrays.fill(scale, -Float.MAX_VALUE);
+            for (int i = 0; i < data.length; i++) {
+                min[i % cols] = Math.min(min[i % cols], data[i]);
+                scale[i % cols] = Math.max(scale[i % cols], data[i]);
+            }
+            for (int j = 0; j < cols; j++) {
+                scale[j] = (scale[j] - min[j]) / 255;
+                buffer.putFloat(min[j]);
+            }
+            for (int j = 0; j < cols; j++) {
+                buffer.putFloat(scale[j]);
+            }
+            for (int i = 0; i < data.length; i++) {
+                int j = i % cols;
+                int level = scale[j] > 0 ? Math.round((data[i] - min[j]) / scale[j]) : 0;
+                buffer.put((byte) Math.max(0, Math.min(255, level)));
+            }
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(Paths.get(path),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Maps the file and copies the descriptors out of the mapping into a
+     * primitive array, from which {@link Mat#put} copies them into native
+     * memory. OpenCV 3.1's Java Mat cannot wrap a buffer, so that second copy
+     * remains.
+     */
+    public static Mat read(String path) throws IOException {
+        Path file = Paths.get(path);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Descriptor file too large: " + path);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (buffer.remaining() >= 2 && buffer.order(ByteOrder.BIG_ENDIAN).getShort(0) == LEGACY_MAGIC) {
+            try (InputStream in = Files.newInputStream(file)) {
+                return readLegacy(in, path);
+            }
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return readMat(buffer, path);
+    }
+
+    static Mat readMat(ByteBuffer buffer, String source) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a descriptor file: " + source);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION && version != COMPRESSED_VERSION) {
+            throw new IOException("Unsupported descriptor file version " + version + ": " + source);
+        }
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        int type = buffer.getInt();
+        if (rows < 0 || cols < 0 || (long) rows * cols > buffer.remaining()) {
+            throw new IOException("Corrupt descriptor file: " + source); // every value takes at least a byte
+        }
+        if (version == COMPRESSED_VERSION) {
+            return readCompressed(buffer, rows, cols, source);
+        }
+        Mat mat = new Mat(rows, cols, type);
+        readData(buffer, mat);
+        return mat;
+    }
+
+    private static Mat readCompressed(ByteBuffer buffer, int rows, int cols, String source) throws IOException {
+        int storage = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+        float[] data = new float[rows * cols];
+        if (storage == Quantization.FP16.ordinal() && buffer.remaining() >= data.length * 2) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = Float16.toFloat(buffer.getShort());
+            }
+        } else if (storage == Quantization.INT8.ordinal() && buffer.remaining() >= cols * 8 + data.length) {
+            float[] min = new float[cols], scale = new float[cols];
+            buffer.asFloatBuffer().get(min);
+            buffer.position(buffer.position() + cols * 4);
+            buffer.asFloatBuffer().get(scale);
+            buffer.position(buffer.position() + cols * 4);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = min[i % cols] + (buffer.get() & 0xFF) * scale[i % cols];
+            }
+        } else {
+            throw new IOException("Corrupt compressed descriptor file: " + source);
+        }
+        Mat mat = new Mat(rows, cols, CvType.CV_32F);
+        mat.put(0, 0, data);
+        return mat;
+    }
+
+    static Mat readLegacy(InputStream in, String source) throws IOException {
+        int rows, cols, type;
+        Object data;
+        try (ObjectInputStream ois = new ObjectInputStream(in)) {
+            rows = (int) ois.readObject();
+            cols = (int) ois.readObject();
+            type = (int) ois.readObject();
+            data = ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException ex) {
+            throw new IOException("Corrupt legacy descriptor file: " + source, ex);
+        }
+        Mat mat = new Mat(rows, cols, type);
+        switch (type) {
+            case CvType.CV_8S:
+            case CvType.CV_8U:
+                mat.put(0, 0, (byte[]) data);
+                break;
+            case CvType.CV_16S:
+            case CvType.CV_16U:
+                mat.put(0, 0, (short[]) data);
+                break;
+            case CvType.CV_32S:
+                mat.put(0, 0, (int[]) data);
+                break;
+            case CvType.CV_32F:
+                mat.put(0, 0, (float[]) data);
+                break;
+            case CvType.CV_64F:
+                mat.put(0, 0, (double[]) data);
+                break;
+        }
+        return mat;
+    }
+
+    static int dataSize(Mat mat) {
+        return (int) mat.total() * CvType.ELEM_SIZE(mat.type());
+    }
+
+    static void writeHeader(ByteBuffer buffer, Mat mat) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(mat.rows());
+        buffer.putInt(mat.cols());
+        buffer.putInt(mat.type());
+    }
+
+    /**
+     * Copies the mat's data into the buffer at its position, advancing it.
+     */
+    static void writeData(ByteBuffer buffer, Mat mat) {
+        int length = (int) mat.total() * mat.channels();
+        if (length == 0) {
+            return;
+        }
+        switch (CvType.depth(mat.type())) {
+            case CvType.CV_8S:
+            case CvType.CV_8U:
+                byte[] bytes = new byte[length];
+                mat.get(0, 0, bytes);
+                buffer.put(bytes);
+                break;
+            case CvType.CV_16S:
+            case CvType.CV_16U:
+                short[] shorts = new short[length];
+                mat.get(0, 0, shorts);
+                buffer.asShortBuffer().put(shorts);
+                buffer.position(buffer.position() + length * 2);
+                break;
+            case CvType.CV_32S:
+                int[] ints = new int[length];
+                mat.get(0, 0, ints);
+                buffer.asIntBuffer().put(ints);
+                buffer.position(buffer.position() + length * 4);
+                break;
+            case CvType.CV_32F:
+                float[] floats = new float[length];
+                mat.get(0, 0, floats);
+                buffer.asFloatBuffer().put(floats);
+                buffer.position(buffer.position() + length * 4);
+                break;
+            case CvType.CV_64F:
+                double[] doubles = new double[length];
+                mat.get(0, 0, doubles);
+                buffer.asDoubleBuffer().put(doubles);
+                buffer.position(buffer.position() + length * 8);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported mat type: " + CvType.typeToString(mat.type()));
+        }
+    }
+
+    /**
+     * Fills the mat with data read from the buffer at its position, advancing
+     * it. The buffer may be a {@link java.nio.MappedByteBuffer}, in which case
+     * the only copy is the bulk get out of the mapping.
+     */
+    static void readData(ByteBuffer buffer, Mat mat) throws IOException {
+        int length = (int) mat.total() * mat.channels();
+        if (length == 0) {
+            return;
+        }
+        if (buffer.remaining() < dataSize(mat)) {
+            mat.release();
+            throw new IOException("Truncated descriptor data");
+        }
+        switch (CvType.depth(mat.type())) {
+            case CvType.CV_8S:
+            case CvType.CV_8U:
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                mat.put(0, 0, bytes);
+                break;
+            case CvType.CV_16S:
+            case CvType.CV_16U:
+                short[] shorts = new short[length];
+                buffer.asShortBuffer().get(shorts);
+                buffer.position(buffer.position() + length * 2);
+                mat.put(0, 0, shorts);
+                break;
+            case CvType.CV_32S:
+                int[] ints = new int[length];
+                buffer.asIntBuffer().get(ints);
+                buffer.position(buffer.position() + length * 4);
+                mat.put(0, 0, ints);
+                break;
+            case CvType.CV_32F:
+                float[] floats = new float[length];
+                buffer.asFloatBuffer().get(floats);
+                buffer.position(buffer.position() + length * 4);
+                mat.put(0, 0, floats);
+                break;
+            case CvType.CV_64F:
+                double[] doubles = new double[length];
+                buffer.asDoubleBuffer().get(doubles);
+                buffer.position(buffer.position() + length * 8);
+                mat.put(0, 0, doubles);
+                break;
+            default:
+                mat.release();
+                throw new IOException("Unsupported mat type: " + CvType.typeToString(mat.type()));
+        }
+    }
+
+}
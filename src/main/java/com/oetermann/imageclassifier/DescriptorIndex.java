@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ * Nearest neighbour search over the descriptors of a set of training images,
+ * the part of a {@link MatchFinderWrapper} that depends on the descriptor type.
+ * Implementations must allow concurrent calls to
+ * {@link #match(Mat, MatchCollector, QueryTrace)}.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+interface DescriptorIndex {
+
+    interface MatchCollector {
+
+        /**
+         * @param queryRow row of the query descriptor
+         * @param image index of the training image the nearest descriptor
+         * belongs to
+         * @param weight vote for the image, between 0 and 1
+         */
+        void collect(int queryRow, int image, double weight);
+    }
+
+    int imageCount();
+
+    int descriptorCount();
+
+    /**
+     * Reports the nearest training descriptor of every query row, in row
+     * order.
+     *
+     * @param trace receives the time spent converting and searching, vote
+     * counting done while searching is counted as search time
+     */
+    void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace);
+
+    /**
+     * Whether matches depend on all rows of a query together, so queries
+     * must neither be stacked nor split into chunks.
+     */
+    default boolean scoresWholeQuery() {
+        return false;
+    }
+
+    /**
+     * @return the training descriptors of every image, to be released by the
+     * caller
+     */
+    List<Mat> trainDescriptors();
+
+    /**
+     * @return approximate bytes held by the descriptors and search structures
+     */
+    long memoryUsage();
+
+    /**
+     * Writes the index for {@link MatcherSnapshot}.
+     */
+    void write(DataOutputStream out) throws IOException;
+
+    void release();
+
+}
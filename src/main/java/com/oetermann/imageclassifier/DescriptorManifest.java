@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * What a directory of .descr files was computed from, one line per image:
+ * <pre>
+ * size | mtime millis | content hash (hex) | extractor config | image path | descriptor file
+ * </pre>
+ * separated by tabs, so reruns can skip images that have not changed.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class DescriptorManifest {
+
+    static final String FILE_NAME = "descriptors.manifest";
+    private static final String HEADER = "# ImageClassifier descriptor manifest v1";
+
+    static final class Entry {
+
+        final long size, modified, hash;
+        final String config, descriptorFile;
+
+        Entry(long size, long modified, long hash, String config, String descriptorFile) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.config = config;
+            this.descriptorFile = descriptorFile;
+        }
+    }
+
+    final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Path file;
+
+    DescriptorManifest(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * A missing or unreadable manifest is empty, which recomputes everything.
+     */
+    static DescriptorManifest load(Path file) {
+        DescriptorManifest manifest = new DescriptorManifest(file);
+        if (!Files.isRegularFile(file)) {
+            return manifest;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            if (!HEADER.equals(line)) {
+                System.err.println("ERROR: Unknown manifest format, recomputing all descriptors: " + file);
+                return manifest;
+            }
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length == 6) {
+                    manifest.entries.put(fields[4], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                            Long.parseUnsignedLong(fields[2], 16), fields[3], fields[5]));
+                }
+            }
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println("ERROR: Could not read manifest, recomputing all descriptors: " + file);
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    /**
+     * Writes to a temporary file first, so an interrupted save keeps the old
+     * manifest.
+     */
+    void save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(value.size + "\t" + value.modified + "\t" + Long.toHexString(value.hash) + "\t"
+                        + value.config + "\t" + entry.getKey() + "\t" + value.descriptorFile);
+                writer.newLine();
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
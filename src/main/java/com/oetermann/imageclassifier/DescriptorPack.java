@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ * A single file holding the descriptors of many images, so a whole directory
+ * of .descr files can be loaded with one open and a few memory mappings.
+ * <pre>
+ * magic "DPAK" | int version | int count | int reserved | long indexOffset
+ * entries, each a complete .descr record (see {@link DescriptorIO}), 8 byte aligned
+ * index: count times (long offset | int length | int nameLength | UTF-8 name)
+ * </pre>
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public final class DescriptorPack {
+
+    public static final String EXTENSION = ".dpack";
+    public static final int VERSION = 1;
+
+    static final int MAGIC = 0x4B415044; // "DPAK" read as little endian int
+    private static final int HEADER_SIZE = 24;
+    private static final long WINDOW_SIZE = 256L << 20;
+
+    private DescriptorPack() {
+    }
+
+    public static void write(String packFile, List<String> names, List<Mat> descriptors) throws IOException {
+        try (Writer writer = new Writer(packFile)) {
+            for (int i = 0; i < descriptors.size(); i++) {
+                writer.add(names.get(i), descriptors.get(i));
+            }
+        }
+    }
+
+    /**
+     * Packs existing .descr files without holding more than one of them in
+     * memory. The file paths are kept as names.
+     */
+    public static void pack(String packFile, List<String> descriptorFiles) throws IOException {
+        try (Writer writer = new Writer(packFile)) {
+            for (String descriptorFile : descriptorFiles) {
+                Mat descriptor;
+                try {
+                    descriptor = DescriptorIO.read(descriptorFile);
+                } catch (IOException ex) {
+                    System.err.println("ERROR: Could not load mat from file: " + descriptorFile);
+                    continue;
+                }
+                writer.add(descriptorFile, descriptor);
+                descriptor.release();
+            }
+        }
+    }
+
+    public static void read(String packFile, List<String> names, List<Mat> descriptors) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(packFile), StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a descriptor pack: " + packFile);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported descriptor pack version " + version + ": " + packFile);
+            }
+            int count = header.getInt();
+            header.getInt();
+            long indexOffset = header.getLong();
+
+            long indexSize = channel.size() - indexOffset;
+            if (indexSize < 0 || indexSize > Integer.MAX_VALUE) {
+                throw new IOException("Corrupt descriptor pack index: " + packFile);
+            }
+            ByteBuffer index = readFully(channel, indexOffset, (int) indexSize);
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            List<String> entryNames = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                byte[] name = new byte[index.getInt()];
+                index.get(name);
+                entryNames.add(new String(name, StandardCharsets.UTF_8));
+            }
+
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+            for (int i = 0; i < count; i++) {
+                if (window == null || offsets[i] < windowStart
+                        || offsets[i] + lengths[i] > windowStart + window.capacity()) {
+                    windowStart = offsets[i];
+                    long size = Math.min(Math.max(lengths[i], WINDOW_SIZE), indexOffset - windowStart);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, size);
+                    window.order(ByteOrder.LITTLE_ENDIAN);
+                }
+                window.limit((int) (offsets[i] - windowStart + lengths[i]));
+                window.position((int) (offsets[i] - windowStart));
+                descriptors.add(DescriptorIO.readMat(window, packFile + "#" + entryNames.get(i)));
+                names.add(entryNames.get(i));
+            }
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of descriptor pack");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final List<byte[]> names = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private long position = HEADER_SIZE;
+
+        Writer(String packFile) throws IOException {
+            File file = new File(packFile).getAbsoluteFile();
+            file.getParentFile().mkdirs();
+            channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        void add(String name, Mat descriptor) throws IOException {
+            int length = DescriptorIO.HEADER_SIZE + DescriptorIO.dataSize(descriptor);
+            int padding = (int) (-(position + length) & 7);
+            ByteBuffer buffer = ByteBuffer.allocate(length + padding).order(ByteOrder.LITTLE_ENDIAN);
+            DescriptorIO.writeHeader(buffer, descriptor);
+            DescriptorIO.writeData(buffer, descriptor);
+            buffer.position(buffer.limit());
+            buffer.flip();
+            write(buffer, position);
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+            offsets.add(position);
+            lengths.add(length);
+            position += length + padding;
+        }
+
+        private void write(ByteBuffer buffer, long at) throws IOException {
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                int indexSize = 0;
+                for (byte[] name : names) {
+                    indexSize += 16 + name.length;
+                }
+                ByteBuffer index = ByteBuffer.allocate(indexSize).order(ByteOrder.LITTLE_ENDIAN);
+                for (int i = 0; i < names.size(); i++) {
+                    index.putLong(offsets.get(i));
+                    index.putInt(lengths.get(i));
+                    index.putInt(names.get(i).length);
+                    index.put(names.get(i));
+                }
+                index.flip();
+                write(index, position);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(names.size());
+                header.putInt(0);
+                header.putLong(position);
+                header.flip();
+                write(header, 0);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.opencv.core.Mat;
+
+/**
+ * Streams images through listing, decode + detect/compute and saving stages
+ * connected by bounded queues, so only a fixed number of images and
+ * descriptors is in memory at any time no matter how many files are processed.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class DescriptorPipeline {
+
+    public interface ProgressListener {
+
+        void progress(int processed, int failed, long elapsedMillis);
+    }
+
+    public interface SaveListener {
+
+        /**
+         * Called on the thread running the pipeline after the descriptors of
+         * an image have been written.
+         */
+        void saved(String image, String descriptorFile);
+    }
+
+    public static final ProgressListener PRINT_PROGRESS = (processed, failed, elapsedMillis) -> {
+        double seconds = Math.max(elapsedMillis, 1) / 1000.0;
+        System.out.println(String.format("Precomputed %d descriptors (%d failed) in %.1fs, %.1f images/s",
+                processed, failed, seconds, processed / seconds));
+    };
+
+    private static final String END_OF_FILES = new String();
+    private static final Result END_OF_RESULTS = new Result(null, null);
+
+    private final DescriptorExtractorWrapper prototype;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int queueCapacity = 32;
+    private long progressInterval = 10000;
+    private ProgressListener progressListener = PRINT_PROGRESS;
+    private SaveListener saveListener;
+    private Quantization storage;
+
+    public DescriptorPipeline(DescriptorExtractorWrapper prototype) {
+        this.prototype = prototype;
+    }
+
+    public DescriptorPipeline setWorkers(int workers) {
+        this.workers = Math.max(1, workers);
+        return this;
+    }
+
+    public DescriptorPipeline setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        return this;
+    }
+
+    public DescriptorPipeline setProgressInterval(long millis) {
+        this.progressInterval = millis;
+        return this;
+    }
+
+    public DescriptorPipeline setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public DescriptorPipeline setSaveListener(SaveListener saveListener) {
+        this.saveListener = saveListener;
+        return this;
+    }
+
+    /**
+     * @param storage how float descriptors are compressed in the files, see
+     * {@link DescriptorIO#write(String, Mat, Quantization)}, or null for none
+     */
+    public DescriptorPipeline setStorage(Quantization storage) {
+        this.storage = storage;
+        return this;
+    }
+
+    /**
+     * Computes and saves the descriptors of all images. Blocks until every
+     * image has been written or the calling thread is interrupted.
+     *
+     * @param images image files, consumed lazily
+     * @param outputFile maps an image file to the .descr file to write
+     * @param grayscale convert images to grayscale before detection
+     * @return the number of images whose descriptors were saved
+     */
+    public int run(Iterable<String> images, Function<String, String> outputFile, boolean grayscale)
+            throws InterruptedException {
+        BlockingQueue<String> files = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Result> results = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger runningWorkers = new AtomicInteger(workers);
+        AtomicInteger failed = new AtomicInteger();
+        AtomicBoolean stopped = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(workers + 1, (runnable) -> {
+            Thread thread = new Thread(runnable, "DescriptorPipeline-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<?>> stages = new ArrayList<>();
+
+        stages.add(executor.submit(() -> {
+            try {
+                for (String image : images) {
+                    files.put(image);
+                }
+            } finally {
+                for (int i = 0; i < workers; i++) {
+                    putUnlessStopped(files, END_OF_FILES, stopped);
+                }
+            }
+            return null;
+        }));
+        for (int i = 0; i < workers; i++) {
+            stages.add(executor.submit(() -> {
+                DescriptorExtractorWrapper extractor = null;
+                try {
+                    extractor = prototype.copy();
+                    for (String file = files.take(); file != END_OF_FILES; file = files.take()) {
+                        Mat image = extractor.readImage(file, grayscale);
+                        if (image == null) {
+                            System.out.println("Cannot read file: " + file);
+                            failed.incrementAndGet();
+                            continue;
+                        }
+                        try {
+                            results.put(new Result(file, extractor.detectAndCompute(image)));
+                        } catch (RuntimeException ex) {
+                            System.err.println("ERROR: Could not compute descriptors: " + file);
+                            failed.incrementAndGet();
+                        } finally {
+                            image.release();
+                        }
+                    }
+                } finally {
+                    if (extractor != null) {
+                        extractor.release();
+                    }
+                    if (runningWorkers.decrementAndGet() == 0) {
+                        putUnlessStopped(results, END_OF_RESULTS, stopped);
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        int processed = 0;
+        try {
+            for (Result result = results.take(); result != END_OF_RESULTS; result = results.take()) {
+                String descriptorFile = outputFile.apply(result.image);
+                boolean saved = Util.saveMat(descriptorFile, result.descriptors, storage);
+                result.descriptors.release();
+                if (!saved) {
+                    failed.incrementAndGet();
+                    continue;
+                }
+                if (saveListener != null) {
+                    saveListener.saved(result.image, descriptorFile);
+                }
+                processed++;
+                long now = System.currentTimeMillis();
+                if (progressListener != null && now - lastReport >= progressInterval) {
+                    progressListener.progress(processed, failed.get(), now - start);
+                    lastReport = now;
+                }
+            }
+            // Workers first: the lister blocks on a full queue if a worker failed
+            for (int i = stages.size() - 1; i >= 0; i--) {
+                stages.get(i).get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Descriptor pipeline failed", ex.getCause());
+        } finally {
+            stopped.set(true);
+            executor.shutdownNow();
+            files.clear();
+            results.stream().filter((result) -> result != END_OF_RESULTS).forEach((result) -> {
+                result.descriptors.release();
+            });
+        }
+        if (progressListener != null) {
+            progressListener.progress(processed, failed.get(), System.currentTimeMillis() - start);
+        }
+        return processed;
+    }
+
+    /**
+     * Puts an end marker without blocking forever once the pipeline has
+     * stopped and nothing takes from the queue any more.
+     */
+    private static <T> void putUnlessStopped(BlockingQueue<T> queue, T element, AtomicBoolean stopped)
+            throws InterruptedException {
+        while (!stopped.get()) {
+            if (queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    private static class Result {
+
+        private final String image;
+        private final Mat descriptors;
+
+        Result(String image, Mat descriptors) {
+            this.image = image;
+            this.descriptors = descriptors;
+        }
+    }
+
+}
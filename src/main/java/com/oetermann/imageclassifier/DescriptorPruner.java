@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+/**
+ * Removes descriptors that do not help telling training images apart before
+ * a matcher is built: near duplicates within an image, which only repeat its
+ * votes, and descriptors with close neighbours in many other images, like
+ * logos, borders and text, which vote for whatever image they hit.
+ * <p>
+ * Distances are relative, a fraction of the bits for binary descriptors and
+ * of the descriptor's length for float descriptors, so the same settings
+ * work for ORB and SURF alike. Finding common descriptors matches the whole
+ * training set against itself, which is quadratic for binary descriptors.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class DescriptorPruner {
+
+    public static final Consumer<Report> PRINT_REPORT = (report) -> {
+        System.out.println(report);
+    };
+
+    private double duplicateDistance = 0.06;
+    private double matchDistance = 0.2;
+    private int maxImages = 10;
+    private int minDescriptors = 20;
+    private Consumer<Report> reportListener;
+
+    /**
+     * @param duplicateDistance descriptors of the same image closer than
+     * this are merged into the first of them, 0 to keep them all
+     */
+    public DescriptorPruner setDuplicateDistance(double duplicateDistance) {
+        this.duplicateDistance = Math.max(0, duplicateDistance);
+        return this;
+    }
+
+    /**
+     * @param matchDistance descriptors of other images closer than this count
+     * as matches
+     */
+    public DescriptorPruner setMatchDistance(double matchDistance) {
+        this.matchDistance = Math.max(0, matchDistance);
+        return this;
+    }
+
+    /**
+     * @param maxImages descriptors matching more other images are removed, 0
+     * to keep them all
+     */
+    public DescriptorPruner setMaxImages(int maxImages) {
+        this.maxImages = Math.max(0, maxImages);
+        return this;
+    }
+
+    /**
+     * @param minDescriptors common descriptors are kept, least common first,
+     * as far as needed to leave an image this many
+     */
+    public DescriptorPruner setMinDescriptors(int minDescriptors) {
+        this.minDescriptors = Math.max(0, minDescriptors);
+        return this;
+    }
+
+    /**
+     * @param reportListener called with the report of every pruning, e.g.
+     * {@link #PRINT_REPORT}, or null for none
+     */
+    public DescriptorPruner setReportListener(Consumer<Report> reportListener) {
+        this.reportListener = reportListener;
+        return this;
+    }
+
+    /**
+     * Replaces the descriptors of every image with the pruned ones, releasing
+     * the replaced Mats. Descriptors other than {@link CvType#CV_8U} and
+     * {@link CvType#CV_32F} are left alone.
+     *
+     * @param descriptors descriptors per image, changed in place
+     */
+    public Report prune(List<Mat> descriptors) {
+        long start = System.currentTimeMillis();
+        Report report = new Report();
+        report.images = descriptors.size();
+        report.descriptorsBefore = descriptors.stream().mapToInt(Mat::rows).sum();
+        report.bytesBefore = descriptors.stream().mapToLong(DescriptorPruner::bytes).sum();
+
+        if (duplicateDistance > 0) {
+            boolean[][] keep = new boolean[descriptors.size()][];
+            IntStream.range(0, descriptors.size()).parallel().forEach((image) -> {
+                keep[image] = uniqueRows(descriptors.get(image));
+            });
+            report.duplicates = retain(descriptors, keep);
+        }
+        if (maxImages > 0 && descriptors.size() > maxImages + 1) {
+            report.common = retain(descriptors, distinctiveRows(descriptors));
+        }
+
+        report.descriptorsAfter = descriptors.stream().mapToInt(Mat::rows).sum();
+        report.bytesAfter = descriptors.stream().mapToLong(DescriptorPruner::bytes).sum();
+        report.millis = System.currentTimeMillis() - start;
+        if (reportListener != null) {
+            reportListener.accept(report);
+        }
+        return report;
+    }
+
+    private static boolean isPrunable(Mat descriptor) {
+        return !descriptor.empty() && (descriptor.type() == CvType.CV_8U || descriptor.type() == CvType.CV_32F);
+    }
+
+    private static long bytes(Mat descriptor) {
+        return descriptor.total() * descriptor.elemSize();
+    }
+
+    /**
+     * Greedily keeps every row that is not within the duplicate distance of
+     * an earlier kept row.
+     */
+    private boolean[] uniqueRows(Mat descriptor) {
+        if (!isPrunable(descriptor)) {
+            return null;
+        }
+        int rows = descriptor.rows(), cols = descriptor.cols();
+        boolean[] keep = new boolean[rows];
+        int[] kept = new int[rows];
+        int keptCount = 0;
+        if (descriptor.type() == CvType.CV_8U) {
+            int words = (cols + 7) / 8;
+            byte[] data = new byte[rows * cols];
+            descriptor.get(0, 0, data);
+            long[] codes = new long[rows * words];
+            for (int row = 0; row < rows; row++) {
+                HammingIndex.pack(data, row * cols, cols, codes, row * words);
+            }
+            int maxDistance = (int) (duplicateDistance * cols * 8);
+            for (int row = 0; row < rows; row++) {
+                keep[row] = true;
+                for (int i = 0; i < keptCount && keep[row]; i++) {
+                    int distance = 0;
+                    for (int word = 0; word < words; word++) {
+                        distance += Long.bitCount(codes[row * words + word] ^ codes[kept[i] * words + word]);
+                    }
+                    keep[row] = distance > maxDistance;
+                }
+                if (keep[row]) {
+                    kept[keptCount++] = row;
+                }
+            }
+            return keep;
+        }
+        float[] data = new float[rows * cols];
+        descriptor.get(0, 0, data);
+        for (int row = 0; row < rows; row++) {
+            double maxDistance = duplicateDistance * duplicateDistance * squaredNorm(data, row * cols, cols);
+            keep[row] = true;
+            for (int i = 0; i < keptCount && keep[row]; i++) {
+                double distance = 0;
+                for (int col = 0; col < cols && distance <= maxDistance; col++) {
+                    double difference = data[row * cols + col] - data[kept[i] * cols + col];
+                    distance += difference * difference;
+                }
+                keep[row] = distance > maxDistance;
+            }
+            if (keep[row]) {
+                kept[keptCount++] = row;
+            }
+        }
+        return keep;
+    }
+
+    private static double squaredNorm(float[] data, int offset, int length) {
+        double norm = 0;
+        for (int i = offset; i < offset + length; i++) {
+            norm += data[i] * data[i];
+        }
+        return norm;
+    }
+
+    /**
+     * Matches every image against all training descriptors and counts, per
+     * row, the other images with a descriptor within the match distance
+     * among its nearest neighbours. Descriptors of other types than the first
+     * image's are left alone.
+     */
+    private boolean[][] distinctiveRows(List<Mat> descriptors) {
+        boolean[][] keep = new boolean[descriptors.size()][];
+        int type = descriptors.stream().filter(DescriptorPruner::isPrunable).mapToInt(Mat::type).findFirst().orElse(-1);
+        if (type < 0) {
+            return keep;
+        }
+        List<Mat> train = new ArrayList<>(descriptors.size());
+        descriptors.stream().forEach((descriptor) -> {
+            train.add(descriptor.type() == type ? descriptor : new Mat(0, descriptor.cols(), type));
+        });
+        boolean binary = type == CvType.CV_8U;
+        DescriptorMatcher matcher = DescriptorMatcher.create(binary ? DescriptorMatcher.BRUTEFORCE_HAMMING : DescriptorMatcher.FLANNBASED);
+        matcher.add(train);
+        matcher.train();
+        int neighbours = 2 * (maxImages + 1);
+        List<MatOfDMatch> matches = new ArrayList<>();
+        try {
+            for (int image = 0; image < descriptors.size(); image++) {
+                Mat descriptor = descriptors.get(image);
+                if (descriptor.type() != type || descriptor.empty()) {
+                    continue;
+                }
+                int rows = descriptor.rows(), cols = descriptor.cols();
+                float[] data = binary ? null : new float[rows * cols];
+                if (data != null) {
+                    descriptor.get(0, 0, data);
+                }
+                matcher.knnMatch(descriptor, matches, neighbours);
+                int[] imageCounts = new int[rows];
+                float[] match = new float[neighbours * 4];
+                int[] seen = new int[neighbours];
+                for (MatOfDMatch rowMatches : matches) {
+                    int found = rowMatches.rows();
+                    if (found == 0) {
+                        rowMatches.release();
+                        continue;
+                    }
+                    rowMatches.get(0, 0, match);
+                    rowMatches.release();
+                    int row = (int) match[0];
+                    double maxDistance = binary
+                            ? matchDistance * cols * 8
+                            : matchDistance * Math.sqrt(squaredNorm(data, row * cols, cols));
+                    int distinct = 0;
+                    for (int i = 0; i < found * 4; i += 4) {
+                        int other = (int) match[i + 2];
+                        if (other != image && match[i + 3] <= maxDistance && indexOf(seen, distinct, other) < 0) {
+                            seen[distinct++] = other;
+                        }
+                    }
+                    imageCounts[row] = distinct;
+                }
+                matches.clear();
+                keep[image] = keepDistinctive(imageCounts);
+            }
+        } finally {
+            matches.stream().forEach((rowMatches) -> {
+                rowMatches.release();
+            });
+            matcher.clear();
+            for (int image = 0; image < train.size(); image++) {
+                if (train.get(image) != descriptors.get(image)) {
+                    train.get(image).release();
+                }
+            }
+        }
+        return keep;
+    }
+
+    private static int indexOf(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean[] keepDistinctive(int[] imageCounts) {
+        boolean[] keep = new boolean[imageCounts.length];
+        int kept = 0;
+        for (int row = 0; row < imageCounts.length; row++) {
+            keep[row] = imageCounts[row] <= maxImages;
+            if (keep[row]) {
+                kept++;
+            }
+        }
+        int missing = Math.min(minDescriptors, imageCounts.length) - kept;
+        if (missing > 0) {
+            int[] sorted = imageCounts.clone();
+            Arrays.sort(sorted);
+            int threshold = sorted[kept + missing - 1];
+            for (int row = 0; row < imageCounts.length; row++) {
+                if (!keep[row] && imageCounts[row] < threshold) {
+                    keep[row] = true;
+                    missing--;
+                }
+            }
+            for (int row = 0; row < imageCounts.length && missing > 0; row++) {
+                if (!keep[row] && imageCounts[row] == threshold) {
+                    keep[row] = true;
+                    missing--;
+                }
+            }
+        }
+        return keep;
+    }
+
+    /**
+     * Replaces every descriptor Mat with a row mask by a copy of the kept
+     * rows.
+     *
+     * @return the number of rows removed
+     */
+    private static int retain(List<Mat> descriptors, boolean[][] keep) {
+        int removed = 0;
+        for (int image = 0; image < descriptors.size(); image++) {
+            Mat descriptor = descriptors.get(image);
+            boolean[] mask = keep[image];
+            if (mask == null) {
+                continue;
+            }
+            int rows = descriptor.rows(), cols = descriptor.cols();
+            int[] kept = IntStream.range(0, rows).filter((row) -> mask[row]).toArray();
+            if (kept.length == rows) {
+                continue;
+            }
+            Mat pruned = new Mat(kept.length, cols, descriptor.type());
+            if (descriptor.type() == CvType.CV_8U) {
+                byte[] data = new byte[rows * cols];
+                descriptor.get(0, 0, data);
+                for (int i = 0; i < kept.length; i++) {
+                    System.arraycopy(data, kept[i] * cols, data, i * cols, cols);
+                }
+                pruned.put(0, 0, Arrays.copyOf(data, kept.length * cols));
+            } else {
+                float[] data = new float[rows * cols];
+                descriptor.get(0, 0, data);
+                for (int i = 0; i < kept.length; i++) {
+                    System.arraycopy(data, kept[i] * cols, data, i * cols, cols);
+                }
+                pruned.put(0, 0, Arrays.copyOf(data, kept.length * cols));
+            }
+            descriptors.set(image, pruned);
+            descriptor.release();
+            removed += rows - kept.length;
+        }
+        return removed;
+    }
+
+    public static class Report {
+
+        private int images, descriptorsBefore, descriptorsAfter, duplicates, common;
+        private long bytesBefore, bytesAfter, millis;
+
+        public int getImages() {
+            return images;
+        }
+
+        public int getDescriptorsBefore() {
+            return descriptorsBefore;
+        }
+
+        public int getDescriptorsAfter() {
+            return descriptorsAfter;
+        }
+
+        /**
+         * @return descriptors removed as near duplicates within their image
+         */
+        public int getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * @return descriptors removed for matching too many other images
+         */
+        public int getCommon() {
+            return common;
+        }
+
+        public long getBytesBefore() {
+            return bytesBefore;
+        }
+
+        public long getBytesAfter() {
+            return bytesAfter;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Pruned %d images from %d to %d descriptors (%d duplicates, %d common), %.1f to %.1f MB in %.1fs",
+                    images, descriptorsBefore, descriptorsAfter, duplicates, common,
+                    bytesBefore / 1048576.0, bytesAfter / 1048576.0, millis / 1000.0);
+        }
+    }
+
+}
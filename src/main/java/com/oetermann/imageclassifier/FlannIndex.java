@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.util.List;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.DescriptorMatcher;
+
+/**
+ * KD-tree search over float descriptors, everything else is converted to
+ * {@link CvType#CV_32F} first.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class FlannIndex implements DescriptorIndex {
+
+    private final DescriptorMatcher matcher;
+    private final int images, trainDescriptors;
+    private final long memoryUsage;
+
+    FlannIndex(List<Mat> descriptors) {
+        this(DescriptorMatcher.create(DescriptorMatcher.FLANNBASED), descriptors);
+        descriptors.stream().forEach((descriptor) -> {
+            descriptor.convertTo(descriptor, CvType.CV_32F);
+        });
+        matcher.add(descriptors);
+        matcher.train();
+    }
+
+    private FlannIndex(DescriptorMatcher matcher, List<Mat> descriptors) {
+        this.matcher = matcher;
+        this.images = descriptors.size();
+        this.trainDescriptors = descriptors.stream().mapToInt(Mat::rows).sum();
+        this.memoryUsage = descriptors.stream().mapToLong((descriptor) -> descriptor.total() * descriptor.channels() * 4).sum();
+    }
+
+    static FlannIndex read(String fromFile) {
+        DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
+        matcher.read(fromFile);
+        return new FlannIndex(matcher, matcher.getTrainDescriptors());
+    }
+
+    void write(String toFile) {
+        matcher.write(toFile);
+    }
+
+    /**
+     * The Java bindings cannot save a trained FLANN index, so the training
+     * descriptors are written and the KD-trees rebuilt when reading.
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        List<Mat> descriptors = trainDescriptors();
+        try {
+            out.writeInt(descriptors.size());
+            for (Mat descriptor : descriptors) {
+                MatcherSnapshot.writeMat(out, descriptor);
+            }
+        } finally {
+            descriptors.stream().forEach((descriptor) -> {
+                descriptor.release();
+            });
+        }
+    }
+
+    static FlannIndex read(DataInputStream in) throws IOException {
+        int images = in.readInt();
+        List<Mat> descriptors = new ArrayList<>(images);
+        try {
+            for (int i = 0; i < images; i++) {
+                descriptors.add(MatcherSnapshot.readMat(in));
+            }
+            return new FlannIndex(descriptors);
+        } finally {
+            descriptors.stream().forEach((descriptor) -> {
+                descriptor.release();
+            });
+        }
+    }
+
+    @Override
+    public int imageCount() {
+        return images;
+    }
+
+    @Override
+    public int descriptorCount() {
+        return trainDescriptors;
+    }
+
+    /**
+     * Converts and matches into the calling thread's {@link QueryScratch},
+     * then reads the matches as floats straight out of the native buffer. A
+     * {@link MatOfDMatch} row holds queryIdx, trainIdx, imgIdx and distance.
+     */
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        if (queryDescriptors.empty()) {
+            return;
+        }
+        QueryScratch scratch = QueryScratch.forThread();
+        long start = trace.start();
+        Mat query = queryDescriptors;
+        if (query.depth() != CvType.CV_32F) {
+            queryDescriptors.convertTo(scratch.converted, CvType.CV_32F);
+            query = scratch.converted;
+        }
+        start = trace.lap(Stage.CONVERT, start);
+        matcher.match(query, scratch.matches);
+        int rows = scratch.matches.rows();
+        float[] matches = scratch.floats(rows * 4);
+        scratch.matches.get(0, 0, matches);
+        start = trace.lap(Stage.SEARCH, start);
+        for (int i = 0; i < rows * 4; i += 4) {
+            collector.collect((int) matches[i], (int) matches[i + 2], weight(matches[i + 3]));
+        }
+        trace.lap(Stage.VOTE, start);
+    }
+
+    /**
+     * @param distance Euclidean distance as reported by FLANN, large ones as
+     * of binary descriptors converted to floats are scaled down by 1000
+     */
+    static double weight(float distance) {
+        if (distance > 1) {
+            distance = distance / 1000;
+        }
+        if (distance < 1) {
+            return 1 - distance;
+        }
+        return 0;
+    }
+
+    @Override
+    public List<Mat> trainDescriptors() {
+        return matcher.getTrainDescriptors();
+    }
+
+    /**
+     * The descriptors only, FLANN does not report the size of its trees.
+     */
+    @Override
+    public long memoryUsage() {
+        return memoryUsage;
+    }
+
+    @Override
+    public void release() {
+        matcher.getTrainDescriptors().stream().forEach((trainDescriptor) -> {
+            trainDescriptor.release();
+        });
+        matcher.clear();
+    }
+
+}
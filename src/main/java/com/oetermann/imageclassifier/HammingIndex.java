@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Locality sensitive hashing over binary descriptors (ORB, BRISK, AKAZE).
+ * Descriptors are packed into longs and compared with {@link Long#bitCount},
+ * candidates come from several hash tables each keyed by a random sample of
+ * descriptor bits, probing every key within one bit flip, or within two if
+ * that finds no candidate. Votes are weighted by the fraction of bits the
+ * nearest descriptor shares with the query.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class HammingIndex implements DescriptorIndex {
+
+    static final int DEFAULT_TABLES = 8;
+    private static final long SEED = 0x5EEDL;
+
+    private final int images, descriptors, words, bits;
+    private final long[] codes;
+    private final int[] imageOf;
+    private final int[][] keyBits;
+    private final int[][] keys;
+    private final int[][] ids;
+
+    HammingIndex(List<Mat> descriptorsPerImage) {
+        this(descriptorsPerImage, DEFAULT_TABLES);
+    }
+
+    HammingIndex(List<Mat> descriptorsPerImage, int tables) {
+        int cols = 0, rows = 0;
+        for (Mat descriptor : descriptorsPerImage) {
+            if (descriptor.empty()) {
+                continue;
+            }
+            if (descriptor.depth() != CvType.CV_8U || (cols != 0 && descriptor.cols() != cols)) {
+                throw new IllegalArgumentException("Descriptors must be CV_8U rows of equal length");
+            }
+            cols = descriptor.cols();
+            rows += descriptor.rows();
+        }
+        images = descriptorsPerImage.size();
+        descriptors = rows;
+        bits = cols * 8;
+        words = (cols + 7) / 8;
+        codes = new long[descriptors * words];
+        imageOf = new int[descriptors];
+        int id = 0;
+        for (int image = 0; image < images; image++) {
+            Mat descriptor = descriptorsPerImage.get(image);
+            if (descriptor.empty()) {
+                continue;
+            }
+            byte[] data = new byte[descriptor.rows() * cols];
+            descriptor.get(0, 0, data);
+            for (int row = 0; row < descriptor.rows(); row++, id++) {
+                pack(data, row * cols, cols, codes, id * words);
+                imageOf[id] = image;
+            }
+        }
+        keyBits = sampleKeyBits(tables, keyLength(descriptors, bits), bits);
+        keys = new int[tables][];
+        ids = new int[tables][];
+        for (int table = 0; table < tables; table++) {
+            buildTable(table);
+        }
+    }
+
+    private HammingIndex(int images, int bits, long[] codes, int[] imageOf, int[][] keyBits, int[][] keys, int[][] ids) {
+        this.images = images;
+        this.descriptors = imageOf.length;
+        this.bits = bits;
+        this.words = (bits / 8 + 7) / 8;
+        this.codes = codes;
+        this.imageOf = imageOf;
+        this.keyBits = keyBits;
+        this.keys = keys;
+        this.ids = ids;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(images);
+        out.writeInt(bits);
+        MatcherSnapshot.writeLongs(out, codes);
+        MatcherSnapshot.writeInts(out, imageOf);
+        out.writeInt(keys.length);
+        for (int table = 0; table < keys.length; table++) {
+            MatcherSnapshot.writeInts(out, keyBits[table]);
+            MatcherSnapshot.writeInts(out, keys[table]);
+            MatcherSnapshot.writeInts(out, ids[table]);
+        }
+    }
+
+    static HammingIndex read(DataInputStream in) throws IOException {
+        int images = in.readInt();
+        int bits = in.readInt();
+        long[] codes = MatcherSnapshot.readLongs(in);
+        int[] imageOf = MatcherSnapshot.readInts(in);
+        int tables = in.readInt();
+        int[][] keyBits = new int[tables][];
+        int[][] keys = new int[tables][];
+        int[][] ids = new int[tables][];
+        for (int table = 0; table < tables; table++) {
+            keyBits[table] = MatcherSnapshot.readInts(in);
+            keys[table] = MatcherSnapshot.readInts(in);
+            ids[table] = MatcherSnapshot.readInts(in);
+        }
+        return new HammingIndex(images, bits, codes, imageOf, keyBits, keys, ids);
+    }
+
+    private static int keyLength(int descriptors, int bits) {
+        int length = 32 - Integer.numberOfLeadingZeros(Math.max(1, descriptors >> 4));
+        return Math.min(bits, Math.max(8, Math.min(20, length)));
+    }
+
+    private static int[][] sampleKeyBits(int tables, int keyLength, int bits) {
+        Random random = new Random(SEED);
+        int[] positions = new int[bits];
+        for (int i = 0; i < bits; i++) {
+            positions[i] = i;
+        }
+        int[][] keyBits = new int[tables][keyLength];
+        for (int table = 0; table < tables; table++) {
+            for (int i = 0; i < keyLength; i++) {
+                int j = i + random.nextInt(bits - i);
+                int swap = positions[i];
+                positions[i] = positions[j];
+                positions[j] = swap;
+                keyBits[table][i] = positions[i];
+            }
+        }
+        return keyBits;
+    }
+
+    private void buildTable(int table) {
+        long[] sorted = new long[descriptors];
+        for (int id = 0; id < descriptors; id++) {
+            sorted[id] = ((long) key(codes, id * words, keyBits[table]) << 32) | id;
+        }
+        Arrays.sort(sorted);
+        keys[table] = new int[descriptors];
+        ids[table] = new int[descriptors];
+        for (int i = 0; i < descriptors; i++) {
+            keys[table][i] = (int) (sorted[i] >>> 32);
+            ids[table][i] = (int) sorted[i];
+        }
+    }
+
+    static void pack(byte[] data, int offset, int length, long[] codes, int codeOffset) {
+        for (int i = 0; i < length; i++) {
+            if ((i & 7) == 0) {
+                codes[codeOffset + (i >>> 3)] = 0;
+            }
+            codes[codeOffset + (i >>> 3)] |= (data[offset + i] & 0xFFL) << ((i & 7) << 3);
+        }
+    }
+
+    private static int key(long[] codes, int offset, int[] positions) {
+        int key = 0;
+        for (int position : positions) {
+            key = (key << 1) | (int) ((codes[offset + (position >>> 6)] >>> (position & 63)) & 1);
+        }
+        return key;
+    }
+
+    private int distance(long[] query, int id) {
+        int distance = 0;
+        int offset = id * words;
+        for (int i = 0; i < words; i++) {
+            distance += Long.bitCount(query[i] ^ codes[offset + i]);
+        }
+        return distance;
+    }
+
+    /**
+     * @return 1 for identical descriptors, 0.5 for unrelated ones
+     */
+    private double weight(int distance) {
+        return 1 - distance / (double) bits;
+    }
+
+    @Override
+    public int imageCount() {
+        return images;
+    }
+
+    @Override
+    public int descriptorCount() {
+        return descriptors;
+    }
+
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        if (queryDescriptors.empty() || descriptors == 0) {
+            return;
+        }
+        long start = trace.start();
+        int cols = queryDescriptors.cols();
+        if (queryDescriptors.depth() != CvType.CV_8U || cols * 8 != bits) {
+            throw new IllegalArgumentException("Query descriptors do not match the index: "
+                    + CvType.typeToString(queryDescriptors.type()) + " with " + cols + " columns");
+        }
+        QueryScratch scratch = QueryScratch.forThread();
+        byte[] data = scratch.bytes(queryDescriptors.rows() * cols);
+        queryDescriptors.get(0, 0, data);
+        long[] query = scratch.longs(words);
+        for (int row = 0; row < queryDescriptors.rows(); row++) {
+            pack(data, row * cols, cols, query, 0);
+            long best = nearest(query);
+            if (best != Long.MAX_VALUE) {
+                collector.collect(row, imageOf[(int) best], weight((int) (best >>> 32)));
+            }
+        }
+        trace.lap(Stage.SEARCH, start);
+    }
+
+    /**
+     * @return the distance of the nearest candidate in the high and its id in
+     * the low half, Long.MAX_VALUE if there is none
+     */
+    private long nearest(long[] query) {
+        long best = Long.MAX_VALUE;
+        for (int table = 0; table < keys.length && best >>> 32 > 0; table++) {
+            int key = key(query, 0, keyBits[table]);
+            best = probe(query, table, key, best);
+            for (int flip = 0; flip < keyBits[table].length && best >>> 32 > 0; flip++) {
+                best = probe(query, table, key ^ (1 << flip), best);
+            }
+        }
+        if (best != Long.MAX_VALUE) {
+            return best;
+        }
+        // Nothing within one bit flip, probe two so that most rows still vote
+        for (int table = 0; table < keys.length; table++) {
+            int key = key(query, 0, keyBits[table]);
+            for (int first = 0; first < keyBits[table].length; first++) {
+                for (int second = first + 1; second < keyBits[table].length; second++) {
+                    best = probe(query, table, key ^ (1 << first) ^ (1 << second), best);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Keeps the nearest of best and the descriptors with the given key, the
+     * lower id if they are equally near.
+     */
+    private long probe(long[] query, int table, int key, long best) {
+        int[] tableKeys = keys[table];
+        for (int i = firstIndexOf(tableKeys, key); i < descriptors && tableKeys[i] == key; i++) {
+            int id = ids[table][i];
+            best = Math.min(best, (long) distance(query, id) << 32 | id);
+        }
+        return best;
+    }
+
+    private static int firstIndexOf(int[] sortedKeys, int key) {
+        int low = 0, high = sortedKeys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedKeys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public List<Mat> trainDescriptors() {
+        List<Mat> descriptorsPerImage = new ArrayList<>(images);
+        int cols = bits / 8;
+        int id = 0;
+        for (int image = 0; image < images; image++) {
+            int first = id;
+            while (id < descriptors && imageOf[id] == image) {
+                id++;
+            }
+            Mat descriptor = new Mat(id - first, cols, CvType.CV_8U);
+            if (id > first) {
+                byte[] data = new byte[(id - first) * cols];
+                for (int row = 0; row < id - first; row++) {
+                    unpack(codes, (first + row) * words, data, row * cols, cols);
+                }
+                descriptor.put(0, 0, data);
+            }
+            descriptorsPerImage.add(descriptor);
+        }
+        return descriptorsPerImage;
+    }
+
+    static void unpack(long[] codes, int codeOffset, byte[] data, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            data[offset + i] = (byte) (codes[codeOffset + (i >>> 3)] >>> ((i & 7) << 3));
+        }
+    }
+
+    @Override
+    public long memoryUsage() {
+        return codes.length * 8L + imageOf.length * 4L + keys.length * descriptors * 8L;
+    }
+
+    @Override
+    public void release() {
+        // Lives on the Java heap
+    }
+
+}
@@ -16,61 +16,76 @@
  */
 package com.oetermann.imageclassifier;
 
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.features2d.DescriptorExtractor;
-import org.opencv.features2d.FeatureDetector;
+import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
 /**
+ * Matching is thread-safe: every thread uses its own detector and extractor,
+ * and matchers can be retrained while they are being queried.
  *
  * @author Lars Oetermann <lars.oetermann.com>
  */
 public class ImageClassifier {
 
     public static final int NO_MATCH = -1, UNKOWN_MATCHER = -2;
+    /**
+     * The name returned by matchName if no image matched.
+     */
+    public static final String NO_MATCH_NAME = "No match found.";
 
     static {
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
     }
 
     private final DescriptorExtractorWrapper descriptorExtractorWrapper;
-    private final HashMap<String, MatchFinderWrapper> flannMatchers;
+    private final ThreadLocal<DescriptorExtractorWrapper> extractors;
+    private final MatcherRegistry matchers;
+    private volatile int mergeThreshold = MatchFinderWrapper.DEFAULT_MERGE_THRESHOLD;
+    private volatile int progressiveChunkSize;
+    private volatile int shards = 1;
+    private volatile Preprocessor preprocessor;
+    private volatile int keypointBudget;
+    private volatile Quantization quantization, descriptorStorage;
+    private volatile int vocabularyBranching, vocabularyDepth;
+    private volatile Integer decodeFlags;
+    private volatile int decodeReduction = 1;
+    private volatile DescriptorPruner pruner;
+    private final ConcurrentHashMap<String, MatchCache> resultCaches = new ConcurrentHashMap<>();
+    private volatile ClassifierMetrics metrics;
 
     public ImageClassifier(String extractorType) {
-        switch (extractorType) {
-            case "ORB":
-                descriptorExtractorWrapper = new DescriptorExtractorWrapper(FeatureDetector.ORB, DescriptorExtractor.ORB);
-                break;
-            case "SURF":
-                descriptorExtractorWrapper = new DescriptorExtractorWrapper(FeatureDetector.SURF, DescriptorExtractor.SURF);
-                break;
-            case "BRISK":
-                descriptorExtractorWrapper = new DescriptorExtractorWrapper(FeatureDetector.BRISK, DescriptorExtractor.BRISK);
-                break;
-            case "AKAZE":
-                descriptorExtractorWrapper = new DescriptorExtractorWrapper(FeatureDetector.AKAZE, DescriptorExtractor.AKAZE);
-                break;
-            default:
-                descriptorExtractorWrapper = new DescriptorExtractorWrapper();
-                break;
-        }
-        this.flannMatchers = new HashMap<>();
+        this.descriptorExtractorWrapper = DescriptorExtractorWrapper.forName(extractorType);
+        this.extractors = ThreadLocal.withInitial(descriptorExtractorWrapper::copy);
+        this.matchers = new MatcherRegistry();
     }
 
     public ImageClassifier(int detectorType, int extractorType) {
         this.descriptorExtractorWrapper = new DescriptorExtractorWrapper(detectorType, extractorType);
-        this.flannMatchers = new HashMap<>();
+        this.extractors = ThreadLocal.withInitial(descriptorExtractorWrapper::copy);
+        this.matchers = new MatcherRegistry();
     }
 
     public ImageClassifier() {
         this.descriptorExtractorWrapper = new DescriptorExtractorWrapper();
-        this.flannMatchers = new HashMap<>();
+        this.extractors = ThreadLocal.withInitial(descriptorExtractorWrapper::copy);
+        this.matchers = new MatcherRegistry();
     }
 
     public void trainMatcher(String name, boolean recursivly, boolean grayscale, String... paths) {
@@ -90,19 +105,446 @@ public class ImageClassifier {
     }
 
     public void trainMatcher(String name, List<String> images, boolean grayscale) {
-        trainMatcher(name, images, descriptorExtractorWrapper.detectAndCompute(images, grayscale));
+        trainMatcher(name, images, extractor().detectAndCompute(images, grayscale));
     }
 
+    /**
+     * Builds the new matcher before replacing the old one, which keeps serving
+     * queries until then and is released once they have finished.
+     */
     public void trainMatcher(String name, List<String> files, List<Mat> descriptors) {
-        if (flannMatchers.containsKey(name)) {
-            flannMatchers.get(name).release();
+        MatchFinderWrapper matcher = buildMatcher(files, descriptors);
+        matchers.put(name, matcher);
+        invalidateResultCache(name);
+    }
+
+    /**
+     * Builds a matcher with the current settings and releases the
+     * descriptors.
+     */
+    private MatchFinderWrapper buildMatcher(List<String> files, List<Mat> descriptors) {
+        DescriptorPruner currentPruner = pruner;
+        if (currentPruner != null) {
+            descriptors = new ArrayList<>(descriptors);
+            currentPruner.prune(descriptors);
+        }
+        MatchFinderWrapper matcher = vocabularyDepth > 0
+                ? new MatchFinderWrapper(files, descriptors, vocabularyBranching, vocabularyDepth)
+                : new MatchFinderWrapper(files, descriptors, shards, quantization);
+        descriptors.stream().forEach((descriptor) -> {
+            descriptor.release();
+        });
+        matcher.setMergeThreshold(mergeThreshold);
+        return matcher;
+    }
+
+    public void addImages(String name, List<String> images, boolean grayscale) {
+        addImages(name, images, extractor().detectAndCompute(images, grayscale));
+    }
+
+    public void addImagesWithDescriptors(String name, List<String> descriptors) {
+        List<String> files = new ArrayList<>();
+        List<Mat> descriptorList = new ArrayList<>();
+        descriptors.stream().forEach((descriptor) -> {
+            Mat descriptorMat = Util.loadMat(descriptor);
+            if (descriptorMat != null) {
+                files.add(descriptor);
+                descriptorList.add(descriptorMat);
+            }
+        });
+        addImages(name, files, descriptorList);
+    }
+
+    /**
+     * Adds images to a trained matcher without retraining it, or trains a new
+     * matcher if there is none with that name.
+     *
+     * @throws IllegalStateException if the matcher is registered but could
+     * not be loaded
+     */
+    public void addImages(String name, List<String> files, List<Mat> descriptors) {
+        MatchFinderWrapper matcher = matchers.acquireForUpdate(name);
+        if (matcher == null) {
+            trainMatcher(name, files, descriptors);
+            return;
+        }
+        try {
+            matcher.setMergeThreshold(mergeThreshold);
+            matcher.addImages(files, descriptors);
+            invalidateResultCache(name);
+        } finally {
+            matcher.dispose();
         }
-        flannMatchers.put(name, new MatchFinderWrapper(files, descriptors));
         descriptors.stream().forEach((descriptor) -> {
             descriptor.release();
         });
     }
 
+    /**
+     * @param names image names as returned by {@link #matchName}
+     * @return the number of images removed
+     * @throws IllegalStateException if the matcher is registered but could
+     * not be loaded
+     */
+    public int removeImages(String name, Collection<String> names) {
+        MatchFinderWrapper matcher = matchers.acquireForUpdate(name);
+        if (matcher == null) {
+            return 0;
+        }
+        try {
+            int removed = matcher.removeImages(new HashSet<>(names));
+            invalidateResultCache(name);
+            return removed;
+        } finally {
+            matcher.dispose();
+        }
+    }
+
+    /**
+     * Number of added images at which a matcher merges them into its main
+     * index in the background.
+     */
+    public void setMergeThreshold(int mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * Lets single image queries stop matching once the result is certain,
+     * checking after every chunk of query descriptors.
+     *
+     * @param chunkSize descriptors per chunk, 0 to always match all
+     */
+    public void setProgressiveChunkSize(int chunkSize) {
+        this.progressiveChunkSize = chunkSize;
+    }
+
+    /**
+     * Splits the images of matchers trained from now on into shards that are
+     * built and searched in parallel, one core each. Results are the same as
+     * with a single index.
+     *
+     * @param shards number of shards, 1 for a single index
+     */
+    public void setShardCount(int shards) {
+        this.shards = Math.max(1, shards);
+    }
+
+    /**
+     * Compresses the float descriptors (SURF) of matchers trained from now on,
+     * trading some accuracy for fitting more images in memory. Binary
+     * descriptors are not affected.
+     *
+     * @param quantization the compression, or null for none
+     */
+    public void setQuantization(Quantization quantization) {
+        this.quantization = quantization;
+    }
+
+    /**
+     * Sets how query images given as bytes are decoded. By default they are
+     * decoded straight to grayscale, or unchanged if a preprocessor is set so
+     * that it sees the colours. The IMREAD_REDUCED flags that let the JPEG
+     * decoder skip resolution need OpenCV 3.2 or later, with OpenCV 3.1 use
+     * {@link #setDecodeReduction(int)}.
+     *
+     * @param imreadFlags {@link Imgcodecs} IMREAD flags, or null for the
+     * default
+     */
+    public void setDecodeFlags(Integer imreadFlags) {
+        this.decodeFlags = imreadFlags;
+    }
+
+    /**
+     * Scales query images given as bytes down after decoding, which speeds
+     * up detection on large photos but only matches well if the training
+     * images were scaled down alike, e.g. with
+     * {@link Preprocessor#maxDimension(int)}.
+     *
+     * @param factor 2, 4 or 8 to divide width and height by, 1 for full
+     * resolution
+     */
+    public void setDecodeReduction(int factor) {
+        this.decodeReduction = Math.max(1, factor);
+    }
+
+    private Mat reduce(Mat image) {
+        int factor = decodeReduction;
+        if (factor > 1 && !image.empty()) {
+            Imgproc.resize(image, image, new Size(), 1.0 / factor, 1.0 / factor, Imgproc.INTER_AREA);
+        }
+        return image;
+    }
+
+    private int decodeFlags() {
+        Integer flags = decodeFlags;
+        if (flags != null) {
+            return flags;
+        }
+        return preprocessor == null ? Imgcodecs.IMREAD_GRAYSCALE : Imgcodecs.IMREAD_UNCHANGED;
+    }
+
+    /**
+     * Trains matchers from now on with a vocabulary tree of visual words, for
+     * collections too large to match every descriptor. Classification cost
+     * then grows with the vocabulary and the images sharing a query's words
+     * instead of with the number of training descriptors. Shards and
+     * quantization do not apply.
+     *
+     * @param branching children per node, 10 is a good start
+     * @param depth levels of the tree, 0 to match descriptors directly
+     * @see VocabularyTreeIndex
+     */
+    public synchronized void setVocabularyTree(int branching, int depth) {
+        this.vocabularyBranching = branching;
+        this.vocabularyDepth = Math.max(0, depth);
+    }
+
+    /**
+     * Compresses float descriptors written to .descr files from now on, they
+     * are decompressed when read.
+     *
+     * @param storage {@link Quantization#FP16}, {@link Quantization#INT8} or
+     * null for none
+     */
+    public void setDescriptorStorage(Quantization storage) {
+        if (storage != null && !storage.isStorable()) {
+            throw new IllegalArgumentException("Cannot store descriptor files as " + storage);
+        }
+        this.descriptorStorage = storage;
+    }
+
+    /**
+     * Prunes the descriptors of every matcher trained from now on, images
+     * added later are not pruned.
+     *
+     * @param pruner the pruner, or null to keep all descriptors
+     */
+    public void setPruner(DescriptorPruner pruner) {
+        this.pruner = pruner;
+    }
+
+    /**
+     * Runs the preprocessor on every training and query image before
+     * detection, in place of the histogram equalization queries get by
+     * default. Matchers trained before should be retrained.
+     *
+     * @param preprocessor the steps to run, or null for the default
+     */
+    public synchronized void setPreprocessor(Preprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+        descriptorExtractorWrapper.setPreprocessor(preprocessor);
+    }
+
+    /**
+     * @param keypointBudget keypoints kept per image, the strongest ones, or 0
+     * for all
+     * @see DescriptorExtractorWrapper#setKeypointBudget(int)
+     */
+    public synchronized void setKeypointBudget(int keypointBudget) {
+        this.keypointBudget = keypointBudget;
+        descriptorExtractorWrapper.setKeypointBudget(keypointBudget);
+    }
+
+    /**
+     * @return the calling thread's extractor with the current settings
+     */
+    private DescriptorExtractorWrapper extractor() {
+        return extractors.get()
+                .setPreprocessor(preprocessor)
+                .setKeypointBudget(keypointBudget);
+    }
+
+    public boolean saveMatcher(String name, String toFile) {
+        MatchFinderWrapper matcher = matchers.acquire(name);
+        if (matcher == null) {
+            return false;
+        }
+        try {
+            return matcher.save(toFile);
+        } finally {
+            matcher.dispose();
+        }
+    }
+
+    /**
+     * Replaces the named matcher with one saved by {@link #saveMatcher}, ready
+     * to be queried without training.
+     */
+    public boolean loadMatcher(String name, String fromFile) {
+        MatchFinderWrapper matcher;
+        try {
+            matcher = new MatchFinderWrapper(fromFile);
+        } catch (UncheckedIOException ex) {
+            System.err.println("ERROR: Could not load matcher from file: " + fromFile);
+            return false;
+        }
+        matcher.setMergeThreshold(mergeThreshold);
+        matchers.put(name, matcher);
+        invalidateResultCache(name);
+        return true;
+    }
+
+    /**
+     * Registers a matcher saved by {@link #saveMatcher} that is loaded when
+     * it is first queried, and may be evicted again to stay within the
+     * memory budget. The file is not checked until then.
+     *
+     * @see #setMatcherMemoryBudget(long)
+     */
+    public void registerMatcher(String name, String fromFile) {
+        matchers.register(name, () -> {
+            MatchFinderWrapper matcher = new MatchFinderWrapper(fromFile);
+            matcher.setMergeThreshold(mergeThreshold);
+            return matcher;
+        });
+        invalidateResultCache(name);
+    }
+
+    /**
+     * Registers a matcher that is trained from descriptor files when it is
+     * first queried, with the settings at that time, and may be evicted
+     * again to stay within the memory budget.
+     *
+     * @see #setMatcherMemoryBudget(long)
+     */
+    public void registerMatcherWithDescriptors(String name, boolean recursivly, String... descriptors) {
+        List<String> paths = Arrays.asList(descriptors.clone());
+        matchers.register(name, () -> {
+            List<String> files = new ArrayList<>();
+            List<Mat> descriptorList = new ArrayList<>();
+            paths.stream().forEach((path) -> {
+                Util.listFiles(path, recursivly, ".descr").stream().forEach((file) -> {
+                    Mat descriptorMat = Util.loadMat(file);
+                    if (descriptorMat != null) {
+                        files.add(file);
+                        descriptorList.add(descriptorMat);
+                    }
+                });
+            });
+            return buildMatcher(files, descriptorList);
+        });
+        invalidateResultCache(name);
+    }
+
+    /**
+     * Evicts the least recently used of the registered matchers while all
+     * matchers together need more memory, see
+     * {@link MatchFinderWrapper#memoryUsage()}. Trained matchers, and
+     * registered ones that images were added to or removed from, count
+     * against the budget but are never evicted.
+     *
+     * @param bytes the budget, 0 for no limit
+     */
+    public void setMatcherMemoryBudget(long bytes) {
+        matchers.setMemoryBudget(bytes);
+    }
+
+    public boolean removeMatcher(String name) {
+        boolean removed = matchers.remove(name);
+        invalidateResultCache(name);
+        ClassifierMetrics current = metrics;
+        if (current != null) {
+            current.removeMatcher(name);
+        }
+        return removed;
+    }
+
+    /**
+     * Starts recording latencies per stage and query counters of every
+     * matcher. While disabled the match methods do not read the clock.
+     *
+     * @return the metrics, to add listeners or register them with JMX
+     */
+    public synchronized ClassifierMetrics enableMetrics() {
+        if (metrics == null) {
+            metrics = new ClassifierMetrics(matchers);
+        }
+        return metrics;
+    }
+
+    public synchronized void disableMetrics() {
+        if (metrics != null) {
+            metrics.unregisterMBeans();
+            metrics = null;
+        }
+    }
+
+    /**
+     * @return the metrics, or null while disabled
+     */
+    public ClassifierMetrics getMetrics() {
+        return metrics;
+    }
+
+    private QueryTrace newTrace() {
+        return metrics == null ? QueryTrace.NONE : new QueryTrace();
+    }
+
+    /**
+     * A trace of its own, even with metrics disabled, so that the query can
+     * be cancelled.
+     *
+     * @param deadline {@link System#nanoTime()} at which the query is
+     * aborted, 0 for none
+     */
+    QueryTrace newTrace(long deadline) {
+        return new QueryTrace(metrics != null, deadline);
+    }
+
+    private void record(String matcherName, QueryTrace trace) {
+        ClassifierMetrics current = metrics;
+        if (trace.isEnabled() && current != null) {
+            current.record(matcherName, trace);
+        }
+    }
+
+    private MatchFinderWrapper acquire(String matcherName) {
+        MatchFinderWrapper matcher = matchers.acquire(matcherName);
+        if (matcher == null) {
+            ClassifierMetrics current = metrics;
+            if (current != null) {
+                current.unknownMatcher();
+            }
+        }
+        return matcher;
+    }
+
+    /**
+     * Caches the results of {@link #matchName(String, byte[], int)} and
+     * {@link #matchNameBatch} for the named matcher until it is retrained or
+     * changed.
+     *
+     * @param maxEntries results kept
+     * @param timeToLive milliseconds a result stays valid, 0 for no limit
+     * @param nearDuplicates also reuse results for images with the same
+     * perceptual hash, which still requires decoding them
+     */
+    public void enableResultCache(String matcherName, int maxEntries, long timeToLive, boolean nearDuplicates) {
+        resultCaches.put(matcherName, new MatchCache(maxEntries, timeToLive, nearDuplicates));
+    }
+
+    public void disableResultCache(String matcherName) {
+        resultCaches.remove(matcherName);
+    }
+
+    /**
+     * @return the cache with its hit and miss counters, or null
+     */
+    public MatchCache getResultCache(String matcherName) {
+        return resultCaches.get(matcherName);
+    }
+
+    private void invalidateResultCache(String matcherName) {
+        MatchCache cache = resultCaches.get(matcherName);
+        if (cache != null) {
+            cache.invalidate();
+        }
+    }
+
+    public Set<String> getMatcherNames() {
+        return Collections.unmodifiableSet(matchers.names());
+    }
+
     public void trainMatcherWithDescriptors(String name, boolean recursivly, String... descriptors) {
         List<String> descriptorFiles = new ArrayList<>();
         for (String descriptor : descriptors) {
@@ -120,14 +562,43 @@ public class ImageClassifier {
     }
 
     public void trainMatcherWithDescriptors(String name, List<String> descriptors) {
+        List<String> files = new ArrayList<>();
         List<Mat> descriptorList = new ArrayList<>();
         descriptors.stream().forEach((descriptor) -> {
             Mat descriptorMat = Util.loadMat(descriptor);
             if (descriptorMat != null) {
+                files.add(descriptor);
                 descriptorList.add(descriptorMat);
             }
         });
-        trainMatcher(name, descriptors, descriptorList);
+        trainMatcher(name, files, descriptorList);
+    }
+
+    public void trainMatcherWithDescriptorPack(String name, String packFile) {
+        List<String> files = new ArrayList<>();
+        List<Mat> descriptorList = new ArrayList<>();
+        try {
+            DescriptorPack.read(packFile, files, descriptorList);
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not load descriptor pack: " + packFile);
+            descriptorList.stream().forEach((descriptor) -> {
+                descriptor.release();
+            });
+            return;
+        }
+        trainMatcher(name, files, descriptorList);
+    }
+
+    public void packDescriptors(String packFile, boolean recursivly, String... descriptors) {
+        List<String> descriptorFiles = new ArrayList<>();
+        for (String descriptor : descriptors) {
+            descriptorFiles.addAll(Util.listFiles(descriptor, recursivly, ".descr"));
+        }
+        try {
+            DescriptorPack.pack(packFile, descriptorFiles);
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not write descriptor pack: " + packFile);
+        }
     }
 
     public void precomputeDescriptors(boolean recursivly, String outputPath, boolean grayscale, String... inputPaths) {
@@ -148,45 +619,277 @@ public class ImageClassifier {
     }
 
     public void precomputeDescriptors(List<String> images, String outputPath, boolean grayscale) {
-        List<Mat> descriptors = descriptorExtractorWrapper.detectAndCompute(images, grayscale);
+        precomputeDescriptors(images, outputPath, grayscale, Runtime.getRuntime().availableProcessors());
+    }
+
+    public void precomputeDescriptors(List<String> images, String outputPath, boolean grayscale, int workers) {
         String baseDir = Util.longestCommonPrefix(images);
-        if (!outputPath.endsWith("/")) {
-            outputPath += "/";
+        String outputDir = outputPath.endsWith("/") ? outputPath : outputPath + "/";
+        try {
+            new DescriptorPipeline(descriptorExtractorWrapper)
+                    .setWorkers(workers)
+                    .setStorage(descriptorStorage)
+                    .run(images, (image) -> outputDir + image.substring(baseDir.length()) + ".descr", grayscale);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
-        for (int i = 0; i < images.size(); i++) {
-            Util.saveMat(outputPath + images.get(i).replaceFirst(baseDir, "") + ".descr", descriptors.get(i));
-            descriptors.get(i).release();
+    }
+
+    /**
+     * Like {@link #precomputeDescriptors} but only computes descriptors of
+     * new or changed images and deletes those of removed images, see
+     * {@link DescriptorCache}. Train from the result with
+     * {@link #trainMatcherWithDescriptors(String, boolean, String...)}.
+     *
+     * @return what changed, null if interrupted
+     */
+    public DescriptorCache.Refresh refreshDescriptors(boolean recursivly, String outputPath, boolean grayscale, String... inputPaths) {
+        try {
+            return new DescriptorCache(descriptorExtractorWrapper, outputPath, grayscale)
+                    .setStorage(descriptorStorage)
+                    .refresh(Arrays.asList(inputPaths), recursivly);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
+    /**
+     * Keeps the descriptors in outputPath current while the input
+     * directories change, until the returned Closeable is closed.
+     */
+    public Closeable watchDescriptors(boolean recursivly, String outputPath, boolean grayscale, Consumer<DescriptorCache.Refresh> listener, String... inputPaths) throws IOException, InterruptedException {
+        return new DescriptorCache(descriptorExtractorWrapper, outputPath, grayscale)
+                .setStorage(descriptorStorage)
+                .watch(Arrays.asList(inputPaths), recursivly, listener);
+    }
+
     public int match(String matcherName, Mat queryImage) {
         return match(matcherName, queryImage, 22);
     }
 
     public int match(String matcherName, Mat queryImage, int minMatches) {
-        if (!flannMatchers.containsKey(matcherName)) {
+        return match(matcherName, queryImage, minMatches, newTrace());
+    }
+
+    int match(String matcherName, Mat queryImage, int minMatches, QueryTrace trace) {
+        MatchFinderWrapper matcher = acquire(matcherName);
+        if (matcher == null) {
             return UNKOWN_MATCHER;
         }
-        Imgproc.equalizeHist(queryImage, queryImage);
-//        long t = System.currentTimeMillis();
-        Mat queryDescriptors = descriptorExtractorWrapper.detectAndCompute(queryImage);
-//        System.out.println("SURF: "+(System.currentTimeMillis()-t));
-//        t = System.currentTimeMillis();
-        int match = flannMatchers.get(matcherName).bestMatch(queryDescriptors, minMatches);
-        queryDescriptors.release();
-//        System.out.println("FLANN: "+(System.currentTimeMillis()-t));
+        try {
+            int match = match(matcher, queryImage, minMatches, trace);
+            record(matcherName, trace);
+            return match;
+        } finally {
+            matcher.dispose();
+        }
+    }
+
+    private int match(MatchFinderWrapper matcher, Mat queryImage, int minMatches, QueryTrace trace) {
+        trace.checkpoint();
+        DescriptorExtractorWrapper extractor = extractor();
+        if (extractor.getPreprocessor() == null) {
+            long start = trace.start();
+            Imgproc.equalizeHist(queryImage, queryImage);
+            trace.lap(Stage.PREPROCESS, start);
+        }
+        Mat queryDescriptors = extractor.detectAndComputeQuery(queryImage, trace);
+        trace.checkpoint();
+        int match = matcher.bestMatch(queryDescriptors, minMatches, progressiveChunkSize, trace);
+        trace.finish(match);
         return match;
     }
 
     public String matchName(String matcherName, Mat queryImage, int minMatches) {
-        if (!flannMatchers.containsKey(matcherName)) {
+        return matchName(matcherName, queryImage, minMatches, newTrace());
+    }
+
+    String matchName(String matcherName, Mat queryImage, int minMatches, QueryTrace trace) {
+        MatchFinderWrapper matcher = acquire(matcherName);
+        if (matcher == null) {
             return "Unkown Matcher: " + matcherName;
         }
-        return flannMatchers.get(matcherName).nameOf(match(matcherName, queryImage, minMatches));
+        try {
+            String name = matcher.nameOf(match(matcher, queryImage, minMatches, trace));
+            record(matcherName, trace);
+            return name;
+        } finally {
+            matcher.dispose();
+        }
     }
 
     public String matchName(String matcherName, byte[] data, int minMatches) {
-        return matchName(matcherName, Imgcodecs.imdecode(new MatOfByte(data), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED), minMatches);
+        return matchName(matcherName, data, minMatches, newTrace());
+    }
+
+    String matchName(String matcherName, byte[] data, int minMatches, QueryTrace trace) {
+        MatchCache cache = resultCaches.get(matcherName);
+        if (cache == null) {
+            Mat queryImage = decode(data, trace);
+            try {
+                return matchName(matcherName, queryImage, minMatches, trace);
+            } finally {
+                MatTracker.release(queryImage);
+            }
+        }
+        String name = cache.get(data, minMatches);
+        if (name != null) {
+            return name;
+        }
+        long epoch = cache.epoch(); // before acquiring, a retrained matcher invalidates afterwards
+        MatchFinderWrapper matcher = acquire(matcherName);
+        if (matcher == null) {
+            return "Unkown Matcher: " + matcherName;
+        }
+        Mat queryImage = decode(data, trace);
+        try {
+            long perceptualHash = 0;
+            if (cache.isPerceptual() && !queryImage.empty()) {
+                perceptualHash = MatchCache.perceptualHash(queryImage);
+                name = cache.getNearDuplicate(perceptualHash, minMatches);
+                if (name != null) {
+                    return name;
+                }
+            }
+            name = matcher.nameOf(match(matcher, queryImage, minMatches, trace));
+            record(matcherName, trace);
+            cache.put(epoch, data, perceptualHash, minMatches, name);
+            return name;
+        } finally {
+            MatTracker.release(queryImage);
+            matcher.dispose();
+        }
+    }
+
+    /**
+     * Like {@link #matchName(String, byte[], int)} for images in NIO buffers,
+     * e.g. straight from a network channel. The remaining bytes are decoded
+     * without moving the buffer's position.
+     */
+    public String matchName(String matcherName, ByteBuffer data, int minMatches) {
+        if (resultCaches.containsKey(matcherName)) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            return matchName(matcherName, bytes, minMatches);
+        }
+        QueryTrace trace = newTrace();
+        long start = trace.start();
+        Mat queryImage = MatTracker.track(reduce(ImageDecoder.forThread().decode(data, decodeFlags())), "ImageClassifier.decode");
+        trace.lap(Stage.DECODE, start);
+        try {
+            return matchName(matcherName, queryImage, minMatches, trace);
+        } finally {
+            MatTracker.release(queryImage);
+        }
+    }
+
+    private Mat decode(byte[] data, QueryTrace trace) {
+        long start = trace.start();
+        Mat image = MatTracker.track(reduce(ImageDecoder.forThread().decode(data, 0, data.length, decodeFlags())), "ImageClassifier.decode");
+        trace.lap(Stage.DECODE, start);
+        return image;
+    }
+
+    /**
+     * Classifies several images at once. Detection runs over the whole list
+     * and all descriptors are matched with a single matcher call.
+     *
+     * @return the match of each image, in the order of the images
+     */
+    public int[] matchBatch(String matcherName, List<Mat> queryImages, int minMatches) {
+        QueryTrace trace = newTrace();
+        MatchFinderWrapper matcher = acquire(matcherName);
+        if (matcher == null) {
+            int[] unknown = new int[queryImages.size()];
+            Arrays.fill(unknown, UNKOWN_MATCHER);
+            return unknown;
+        }
+        try {
+            int[] matches = matchBatch(matcher, queryImages, minMatches, trace);
+            record(matcherName, trace);
+            return matches;
+        } finally {
+            matcher.dispose();
+        }
+    }
+
+    private int[] matchBatch(MatchFinderWrapper matcher, List<Mat> queryImages, int minMatches, QueryTrace trace) {
+        DescriptorExtractorWrapper extractor = extractor();
+        if (extractor.getPreprocessor() == null) {
+            long start = trace.start();
+            queryImages.stream().filter((queryImage) -> !queryImage.empty()).forEach((queryImage) -> {
+                Imgproc.equalizeHist(queryImage, queryImage);
+            });
+            trace.lap(Stage.PREPROCESS, start);
+        }
+        List<Mat> queryDescriptors = extractor.detectAndCompute(queryImages, trace);
+        queryDescriptors.stream().forEach((queryDescriptor) -> {
+            MatTracker.track(queryDescriptor, "ImageClassifier.matchBatch");
+        });
+        int[] matches = matcher.bestMatches(queryDescriptors, minMatches, trace);
+        queryDescriptors.stream().forEach((queryDescriptor) -> {
+            MatTracker.release(queryDescriptor);
+        });
+        trace.finish(matches);
+        return matches;
+    }
+
+    /**
+     * Like {@link #matchName(String, byte[], int)} for several images, which
+     * are looked up in the result cache one by one before the rest are
+     * classified with one {@link #matchBatch} call.
+     */
+    public String[] matchNameBatch(String matcherName, List<byte[]> data, int minMatches) {
+        String[] names = new String[data.size()];
+        MatchCache cache = resultCaches.get(matcherName);
+        long epoch = cache != null ? cache.epoch() : 0; // before acquiring, a retrained matcher invalidates afterwards
+        QueryTrace trace = newTrace();
+        MatchFinderWrapper matcher = acquire(matcherName);
+        if (matcher == null) {
+            Arrays.fill(names, "Unkown Matcher: " + matcherName);
+            return names;
+        }
+        List<Integer> uncached = new ArrayList<>(data.size());
+        List<Mat> queryImages = new ArrayList<>(data.size());
+        long[] perceptualHashes = new long[names.length];
+        try {
+            for (int i = 0; i < names.length; i++) {
+                names[i] = cache != null ? cache.get(data.get(i), minMatches) : null;
+                if (names[i] != null) {
+                    continue;
+                }
+                Mat queryImage = decode(data.get(i), trace);
+                if (cache != null && cache.isPerceptual() && !queryImage.empty()) {
+                    perceptualHashes[i] = MatchCache.perceptualHash(queryImage);
+                    names[i] = cache.getNearDuplicate(perceptualHashes[i], minMatches);
+                    if (names[i] != null) {
+                        MatTracker.release(queryImage);
+                        continue;
+                    }
+                }
+                uncached.add(i);
+                queryImages.add(queryImage);
+            }
+            if (queryImages.isEmpty()) {
+                return names;
+            }
+            int[] matches = matchBatch(matcher, queryImages, minMatches, trace);
+            record(matcherName, trace);
+            for (int j = 0; j < matches.length; j++) {
+                int i = uncached.get(j);
+                names[i] = matcher.nameOf(matches[j]);
+                if (cache != null) {
+                    cache.put(epoch, data.get(i), perceptualHashes[i], minMatches, names[i]);
+                }
+            }
+            return names;
+        } finally {
+            matcher.dispose();
+            queryImages.stream().forEach((queryImage) -> {
+                MatTracker.release(queryImage);
+            });
+        }
     }
 
 }
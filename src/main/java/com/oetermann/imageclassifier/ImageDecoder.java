@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.nio.ByteBuffer;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+/**
+ * Decodes encoded images (JPEG, PNG, ...) from memory. The encoded bytes are
+ * copied once into a per thread native buffer that only grows, instead of
+ * into a new {@link org.opencv.core.MatOfByte} per image. The OpenCV 3 Java
+ * bindings cannot wrap memory they did not allocate, so even direct
+ * {@link ByteBuffer}s take this one copy, through a small heap chunk.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class ImageDecoder {
+
+    /**
+     * Larger images are decoded from a temporary buffer, so that threads do
+     * not each hold on to the largest image they have seen.
+     */
+    static final int MAX_RETAINED_BYTES = 16 << 20;
+    private static final int CHUNK = 64 << 10;
+
+    private static final ThreadLocal<ImageDecoder> DECODERS = ThreadLocal.withInitial(ImageDecoder::new);
+
+    private final Mat buffer = MatTracker.track(new Mat(), "ImageDecoder.buffer");
+    private int capacity;
+    private byte[] chunk;
+
+    private ImageDecoder() {
+    }
+
+    static ImageDecoder forThread() {
+        return DECODERS.get();
+    }
+
+    /**
+     * @param flags {@link Imgcodecs} IMREAD flags
+     * @return the image, empty if it could not be decoded
+     */
+    Mat decode(byte[] data, int offset, int length, int flags) {
+        if (length == 0) {
+            return new Mat();
+        }
+        Mat target = bufferFor(length);
+        target.put(0, 0, data, offset, length);
+        return decode(target, length, flags);
+    }
+
+    /**
+     * Decodes the remaining bytes without moving the buffer's position.
+     */
+    Mat decode(ByteBuffer data, int flags) {
+        if (data.hasArray()) {
+            return decode(data.array(), data.arrayOffset() + data.position(), data.remaining(), flags);
+        }
+        int length = data.remaining();
+        if (length == 0) {
+            return new Mat();
+        }
+        if (chunk == null) {
+            chunk = new byte[CHUNK];
+        }
+        Mat target = bufferFor(length);
+        ByteBuffer source = data.duplicate();
+        for (int col = 0; source.hasRemaining(); col += CHUNK) {
+            int count = Math.min(CHUNK, source.remaining());
+            source.get(chunk, 0, count);
+            target.put(0, col, chunk, 0, count);
+        }
+        return decode(target, length, flags);
+    }
+
+    private Mat bufferFor(int length) {
+        if (length > MAX_RETAINED_BYTES) {
+            return new Mat(1, length, CvType.CV_8U);
+        }
+        if (length > capacity) {
+            capacity = Math.min(MAX_RETAINED_BYTES, Math.max(length, capacity * 2));
+            buffer.create(1, capacity, CvType.CV_8U);
+        }
+        return buffer;
+    }
+
+    private Mat decode(Mat target, int length, int flags) {
+        Mat encoded = target.colRange(0, length);
+        try {
+            return Imgcodecs.imdecode(encoded, flags);
+        } finally {
+            encoded.release();
+            if (target != buffer) {
+                target.release();
+            }
+        }
+    }
+
+}
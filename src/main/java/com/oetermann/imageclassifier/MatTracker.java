@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencv.core.Mat;
+
+/**
+ * Debug aid that records where every Mat created on the match path was
+ * allocated until it is released, to find native memory leaks. Enable it with
+ * {@link #setEnabled(boolean)} or {@code -Dimageclassifier.trackMats=true}.
+ * Pooled per thread Mats stay live for the lifetime of their thread and are
+ * reported under their owner's name.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public final class MatTracker {
+
+    private static volatile boolean enabled = Boolean.getBoolean("imageclassifier.trackMats");
+    private static final ConcurrentHashMap<Mat, Throwable> LIVE = new ConcurrentHashMap<>();
+
+    private MatTracker() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        MatTracker.enabled = enabled;
+        if (!enabled) {
+            LIVE.clear();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static <T extends Mat> T track(T mat, String owner) {
+        if (enabled) {
+            LIVE.put(mat, new Throwable(owner));
+        }
+        return mat;
+    }
+
+    static void release(Mat mat) {
+        if (enabled) {
+            LIVE.remove(mat);
+        }
+        mat.release();
+    }
+
+    public static int liveCount() {
+        return LIVE.size();
+    }
+
+    /**
+     * @return owner and allocating stack trace of every tracked Mat that has
+     * not been released
+     */
+    public static List<String> report() {
+        List<String> report = new ArrayList<>();
+        LIVE.values().stream().forEach((allocation) -> {
+            StringBuilder entry = new StringBuilder(allocation.getMessage());
+            for (StackTraceElement element : allocation.getStackTrace()) {
+                entry.append("\n\tat ").append(element);
+            }
+            report.add(entry.toString());
+        });
+        return report;
+    }
+
+    public static void printReport() {
+        List<String> report = report();
+        System.err.println("Unreleased Mats: " + report.size());
+        report.stream().forEach((entry) -> {
+            System.err.println(entry);
+        });
+    }
+
+}
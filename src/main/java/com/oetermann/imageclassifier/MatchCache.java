@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Size bounded LRU cache of match results for encoded images. Identical
+ * uploads are found by a hash of their bytes, optionally re-encoded or
+ * resized copies of an image by a perceptual hash of the decoded pixels.
+ * Entries expire after a time to live and all of them are dropped whenever
+ * the matcher changes.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class MatchCache {
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final boolean perceptual;
+    private final Map<Key, Result> exact;
+    private final Map<Key, Result> nearDuplicates;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong nearDuplicateHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile long epoch;
+
+    /**
+     * @param maxEntries entries kept per layer
+     * @param timeToLive milliseconds an entry stays valid, 0 for no limit
+     * @param perceptual also look up near duplicates by perceptual hash
+     */
+    public MatchCache(int maxEntries, long timeToLive, boolean perceptual) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.perceptual = perceptual;
+        this.exact = lruMap();
+        this.nearDuplicates = lruMap();
+    }
+
+    private Map<Key, Result> lruMap() {
+        return new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean isPerceptual() {
+        return perceptual;
+    }
+
+    /**
+     * @return a token to pass to {@link #put} so results computed before an
+     * {@link #invalidate()} are not stored
+     */
+    public long epoch() {
+        return epoch;
+    }
+
+    public String get(byte[] data, int minMatches) {
+        String name = get(exact, new Key(Util.hash64(data), data.length, minMatches));
+        if (name != null) {
+            hits.incrementAndGet();
+        } else if (!perceptual) {
+            misses.incrementAndGet();
+        }
+        return name;
+    }
+
+    /**
+     * Looks up a near duplicate after {@link #get(byte[], int)} missed.
+     */
+    public String getNearDuplicate(long perceptualHash, int minMatches) {
+        String name = get(nearDuplicates, new Key(perceptualHash, 0, minMatches));
+        if (name != null) {
+            nearDuplicateHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return name;
+    }
+
+    private synchronized String get(Map<Key, Result> layer, Key key) {
+        Result entry = layer.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (timeToLive > 0 && System.currentTimeMillis() - entry.created > timeToLive) {
+            layer.remove(key);
+            return null;
+        }
+        return entry.name;
+    }
+
+    /**
+     * @param perceptualHash ignored unless the cache is perceptual
+     */
+    public synchronized void put(long epoch, byte[] data, long perceptualHash, int minMatches, String name) {
+        if (epoch != this.epoch) {
+            return;
+        }
+        Result entry = new Result(name, System.currentTimeMillis());
+        exact.put(new Key(Util.hash64(data), data.length, minMatches), entry);
+        if (perceptual) {
+            nearDuplicates.put(new Key(perceptualHash, 0, minMatches), entry);
+        }
+    }
+
+    public synchronized void invalidate() {
+        epoch++;
+        exact.clear();
+        nearDuplicates.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getNearDuplicateHits() {
+        return nearDuplicateHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return exact.size();
+    }
+
+    /**
+     * Difference hash: the image is shrunk to 9x8 gray pixels and every bit
+     * tells whether a pixel is brighter than its right neighbour.
+     */
+    public static long perceptualHash(Mat image) {
+        Mat small = new Mat();
+        if (image.channels() == 3) {
+            Imgproc.cvtColor(image, small, Imgproc.COLOR_BGR2GRAY);
+        } else if (image.channels() == 4) {
+            Imgproc.cvtColor(image, small, Imgproc.COLOR_BGRA2GRAY);
+        } else {
+            image.copyTo(small);
+        }
+        Imgproc.resize(small, small, new Size(9, 8), 0, 0, Imgproc.INTER_AREA);
+        small.convertTo(small, CvType.CV_8U);
+        byte[] pixels = new byte[72];
+        small.get(0, 0, pixels);
+        small.release();
+        long hash = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                hash <<= 1;
+                if ((pixels[row * 9 + col] & 0xFF) > (pixels[row * 9 + col + 1] & 0xFF)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private static class Key {
+
+        private final long hash;
+        private final int length, minMatches;
+
+        Key(long hash, int length, int minMatches) {
+            this.hash = hash;
+            this.length = length;
+            this.minMatches = minMatches;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && length == other.length && minMatches == other.minMatches;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(hash) * 31 + minMatches;
+        }
+    }
+
+    private static class Result {
+
+        private final String name;
+        private final long created;
+
+        Result(String name, long created) {
+            this.name = name;
+            this.created = created;
+        }
+    }
+
+}
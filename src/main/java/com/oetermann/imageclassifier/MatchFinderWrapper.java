@@ -16,97 +16,583 @@
  */
 package com.oetermann.imageclassifier;
 
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import com.oetermann.imageclassifier.SegmentedIndex.Segment;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import org.opencv.core.Core;
 import org.opencv.core.CvType;
-import org.opencv.core.DMatch;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfDMatch;
-import org.opencv.features2d.DescriptorMatcher;
 
 /**
  *
  * @author Lars Oetermann <lars.oetermann.com>
  */
-public class MatchFinderWrapper {
+public class MatchFinderWrapper extends RefCounted {
 
-    private final DescriptorMatcher matcher;
-    private final String[] imageNames;
-    private final double[] matchesPerImage;
+    public static final int DEFAULT_MERGE_THRESHOLD = 1000;
 
+    private static final ExecutorService MERGE_EXECUTOR = Executors.newSingleThreadExecutor((runnable) -> {
+        Thread thread = new Thread(runnable, "MatchFinderWrapper-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile SegmentedIndex generation;
+    private final AtomicBoolean merging = new AtomicBoolean();
+    private final Object mergeLock = new Object();
+    private volatile int mergeThreshold = DEFAULT_MERGE_THRESHOLD;
+    private final int shards;
+    private final Quantization quantization;
+    private final int vocabularyBranching, vocabularyDepth;
+    private volatile boolean released;
+
+    /**
+     * Loads a matcher written by {@link #save(String)}. Files written by
+     * older versions only contain the FLANN parameters and train descriptors,
+     * their images are named by index.
+     */
     public MatchFinderWrapper(String fromFile) {
-        matcher = DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
-        matcher.read(fromFile);
-        this.matchesPerImage = new double[matcher.getTrainDescriptors().size()];
-        imageNames = new String[matcher.getTrainDescriptors().size()];
+        if (MatcherSnapshot.isSnapshot(fromFile)) {
+            try {
+                generation = MatcherSnapshot.read(fromFile);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            DescriptorIndex main = generation.segments[0].index;
+            shards = main instanceof ShardedIndex ? ((ShardedIndex) main).shardCount() : 1;
+            quantization = quantizationOf(main instanceof ShardedIndex ? ((ShardedIndex) main).shard(0) : main);
+            vocabularyBranching = main instanceof VocabularyTreeIndex ? ((VocabularyTreeIndex) main).branching() : 0;
+            vocabularyDepth = main instanceof VocabularyTreeIndex ? ((VocabularyTreeIndex) main).depth() : 0;
+            return;
+        }
+        shards = 1;
+        quantization = null;
+        vocabularyBranching = 0;
+        vocabularyDepth = 0;
+        FlannIndex index = FlannIndex.read(fromFile);
+        String[] imageNames = new String[index.imageCount()];
         for (int i = 0; i < imageNames.length; i++) {
             imageNames[i] = "Image#" + i;
         }
+        generation = SegmentedIndex.of(index, imageNames);
     }
 
     public MatchFinderWrapper(List<String> images, List<Mat> descriptors) {
-        matcher = DescriptorMatcher.create(DescriptorMatcher.FLANNBASED);
-        descriptors.stream().forEach((descriptor) -> {
-            descriptor.convertTo(descriptor, CvType.CV_32F);
-        });
-        matcher.add(descriptors);
-        matcher.train();
-        matchesPerImage = new double[descriptors.size()];
-        imageNames = new String[images.size()];
+        this(images, descriptors, 1);
+    }
+
+    /**
+     * @param shards number of indexes the images are split into, each
+     * searched on its own core, see {@link ShardedIndex}
+     */
+    public MatchFinderWrapper(List<String> images, List<Mat> descriptors, int shards) {
+        this(images, descriptors, shards, null);
+    }
+
+    /**
+     * @param quantization how float descriptors are compressed, see
+     * {@link QuantizedIndex}, or null to keep them as they are
+     */
+    public MatchFinderWrapper(List<String> images, List<Mat> descriptors, int shards, Quantization quantization) {
+        this(images, descriptors, shards, quantization, 0, 0);
+    }
+
+    /**
+     * Classifies with a {@link VocabularyTreeIndex} instead of matching every
+     * descriptor, so the cost of a query depends on the vocabulary size and
+     * the images sharing the query's words rather than on the number of
+     * training descriptors. The tree is not sharded.
+     *
+     * @param branching children per vocabulary tree node
+     * @param depth levels of the tree, up to branching^depth visual words
+     */
+    public MatchFinderWrapper(List<String> images, List<Mat> descriptors, int branching, int depth) {
+        this(images, descriptors, 1, null, Math.max(2, branching), Math.max(1, depth));
+    }
+
+    private MatchFinderWrapper(List<String> images, List<Mat> descriptors, int shards, Quantization quantization,
+            int vocabularyBranching, int vocabularyDepth) {
+        if (images.size() != descriptors.size()) {
+            throw new IllegalArgumentException(images.size() + " images with " + descriptors.size() + " descriptors");
+        }
+        this.shards = Math.max(1, shards);
+        this.quantization = quantization;
+        this.vocabularyBranching = vocabularyBranching;
+        this.vocabularyDepth = vocabularyDepth;
+        generation = SegmentedIndex.of(createMainIndex(descriptors), imageNames(images));
+    }
+
+    /**
+     * Binary descriptors ({@link CvType#CV_8U}, as produced by ORB, BRISK and
+     * AKAZE) are searched by Hamming distance, all others with FLANN.
+     */
+    static DescriptorIndex createIndex(List<Mat> descriptors) {
+        return isBinary(descriptors) ? new HammingIndex(descriptors) : new FlannIndex(descriptors);
+    }
+
+    /**
+     * Builds a main index with this matcher's settings.
+     */
+    private DescriptorIndex createMainIndex(List<Mat> descriptors) {
+        if (vocabularyDepth > 0) {
+            return new VocabularyTreeIndex(descriptors, vocabularyBranching, vocabularyDepth);
+        }
+        return createIndex(descriptors, shards, quantization);
+    }
+
+    static DescriptorIndex createIndex(List<Mat> descriptors, int shards, Quantization quantization) {
+        Function<List<Mat>, DescriptorIndex> create;
+        if (isBinary(descriptors)) {
+            create = HammingIndex::new;
+        } else if (quantization != null) {
+            create = (shardDescriptors) -> new QuantizedIndex(shardDescriptors, quantization);
+        } else {
+            create = FlannIndex::new;
+        }
+        if (shards > 1 && descriptors.size() > 1) {
+            return new ShardedIndex(descriptors, shards, create);
+        }
+        return create.apply(descriptors);
+    }
+
+    private static Quantization quantizationOf(DescriptorIndex index) {
+        return index instanceof QuantizedIndex ? ((QuantizedIndex) index).quantization() : null;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return how the main index compresses float descriptors, null if it
+     * does not
+     */
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    /**
+     * @return levels of the vocabulary tree, 0 if descriptors are matched
+     * directly
+     */
+    public int getVocabularyDepth() {
+        return vocabularyDepth;
+    }
+
+    static boolean isBinary(List<Mat> descriptors) {
+        for (Mat descriptor : descriptors) {
+            if (!descriptor.empty() && descriptor.depth() != CvType.CV_8U) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String[] imageNames(List<String> images) {
+        String[] imageNames = new String[images.size()];
         for (int i = 0; i < images.size(); i++) {
             String name = images.get(i);
             imageNames[i] = name.substring(name.lastIndexOf('/') + 1, name.contains(".descr") ? name.indexOf(".descr") : name.length());
         }
+        return imageNames;
     }
 
     public String nameOf(int i) {
         if (i < 0) {
-            return "No match found.";
+            return ImageClassifier.NO_MATCH_NAME;
+        }
+        return generation.imageNames[i];
+    }
+
+    /**
+     * @return the current generation, retained for the caller, or null once
+     * the matcher has been released
+     */
+    private SegmentedIndex acquireGeneration() {
+        for (;;) {
+            SegmentedIndex current = generation;
+            if (current.retain()) {
+                return current;
+            }
+            if (released) {
+                return null;
+            }
         }
-        return imageNames[i];
     }
 
+    /**
+     * Safe to call from several threads at once, the index is only read and
+     * votes are counted in a per thread tally.
+     */
     public int bestMatch(Mat queryDescriptors, int minMatches) {
-        queryDescriptors.convertTo(queryDescriptors, CvType.CV_32F);
-        MatOfDMatch matches = new MatOfDMatch();
-        matcher.match(queryDescriptors, matches);
-        queryDescriptors.empty(); // Attempt to stop GC from releasing mat
-        Arrays.fill(matchesPerImage, 0);
-        DMatch[] matchesArray = matches.toArray();
-        for (DMatch match : matchesArray) {
-//            match.distance;
-            if (match.distance > 1) {
-                match.distance = match.distance / 1000;
+        return bestMatch(queryDescriptors, minMatches, 0);
+    }
+
+    /**
+     * Progressive variant of {@link #bestMatch(Mat, int)} that matches the
+     * query descriptors chunk by chunk and stops as soon as the remaining
+     * descriptors can no longer change the result, because the leading image
+     * is out of reach or no image can reach minMatches anymore. The result is
+     * the same as matching all descriptors. Vocabulary trees score whole
+     * queries, so they always match all at once.
+     *
+     * @param chunkSize descriptors matched per step, 0 to match all at once
+     */
+    public int bestMatch(Mat queryDescriptors, int minMatches, int chunkSize) {
+        return bestMatch(queryDescriptors, minMatches, chunkSize, QueryTrace.NONE);
+    }
+
+    int bestMatch(Mat queryDescriptors, int minMatches, int chunkSize, QueryTrace trace) {
+        SegmentedIndex index = acquireGeneration();
+        if (index == null) {
+            return -1;
+        }
+        try {
+            VoteTally matchesPerImage = VoteTally.forThread(index.imageCount());
+            DescriptorIndex.MatchCollector collector = (queryRow, image, weight) -> {
+                matchesPerImage.add(image, weight);
+            };
+            int rows = queryDescriptors.rows();
+            if (chunkSize <= 0 || chunkSize >= rows || index.scoresWholeQuery()) {
+                index.match(queryDescriptors, collector, trace);
+                return winner(matchesPerImage, minMatches, trace);
             }
-            if (match.distance < 1) {
-                matchesPerImage[match.imgIdx] += 1 - match.distance;
+            for (int from = 0; from < rows; from += chunkSize) {
+                int to = Math.min(rows, from + chunkSize);
+                Mat chunk = MatTracker.track(queryDescriptors.rowRange(from, to), "MatchFinderWrapper.bestMatch");
+                index.match(chunk, collector, trace);
+                MatTracker.release(chunk);
+                if (matchesPerImage.isDecided(minMatches, rows - to)) {
+                    break;
+                }
+                trace.checkpoint();
             }
-//            matchesPerImage[match.imgIdx] += 1;
-//            System.out.println("MatchDistance: "+match.distance + "\t\tImage: "+ imageNames[match.imgIdx]);
+            return winner(matchesPerImage, minMatches, trace);
+        } finally {
+            index.dispose();
         }
-        int index = 0;
-        for (int i = 0; i < matchesPerImage.length; i++) {
-//            System.out.println(matchesPerImage[i] + "\t\tmatches for image " + imageNames[i]);
-            if (matchesPerImage[i] > matchesPerImage[index]) {
-                index = i;
+    }
+
+    private static int winner(VoteTally matchesPerImage, int minMatches, QueryTrace trace) {
+        long start = trace.start();
+        int winner = matchesPerImage.winner(minMatches);
+        trace.lap(Stage.VOTE, start);
+        return winner;
+    }
+
+    /**
+     * Matches the descriptors of several query images with a single index
+     * call by stacking them into one matrix.
+     *
+     * @return the best match of each query, in the order of the queries
+     */
+    public int[] bestMatches(List<Mat> queryDescriptors, int minMatches) {
+        return bestMatches(queryDescriptors, minMatches, QueryTrace.NONE);
+    }
+
+    int[] bestMatches(List<Mat> queryDescriptors, int minMatches, QueryTrace trace) {
+        int[] offsets = new int[queryDescriptors.size() + 1];
+        List<Mat> stackable = new ArrayList<>();
+        for (int i = 0; i < queryDescriptors.size(); i++) {
+            Mat descriptors = queryDescriptors.get(i);
+            offsets[i + 1] = offsets[i];
+            if (!descriptors.empty()) {
+                stackable.add(descriptors);
+                offsets[i + 1] += descriptors.rows();
+            }
+        }
+        int[] results = new int[queryDescriptors.size()];
+        SegmentedIndex index = acquireGeneration();
+        if (index == null) {
+            Arrays.fill(results, -1);
+            return results;
+        }
+        try {
+            VoteTally matchesPerImage = VoteTally.forThread(index.imageCount());
+            int[] query = {0};
+            if (index.scoresWholeQuery()) {
+                for (; query[0] < results.length; query[0]++) {
+                    index.match(queryDescriptors.get(query[0]), (queryRow, image, weight) -> {
+                        matchesPerImage.add(image, weight);
+                    }, trace);
+                    results[query[0]] = matchesPerImage.winner(minMatches);
+                    matchesPerImage.clear();
+                }
+            } else if (!stackable.isEmpty()) {
+                long start = trace.start();
+                Mat stacked = MatTracker.track(new Mat(), "MatchFinderWrapper.bestMatches");
+                Core.vconcat(stackable, stacked);
+                trace.lap(Stage.CONVERT, start);
+                index.match(stacked, (queryRow, image, weight) -> {
+                    while (queryRow >= offsets[query[0] + 1]) {
+                        results[query[0]++] = matchesPerImage.winner(minMatches);
+                        matchesPerImage.clear();
+                    }
+                    matchesPerImage.add(image, weight);
+                }, trace);
+                MatTracker.release(stacked);
+            }
+            for (; query[0] < results.length; query[0]++) {
+                results[query[0]] = matchesPerImage.winner(minMatches);
+                matchesPerImage.clear();
+            }
+        } finally {
+            index.dispose();
+        }
+        return results;
+    }
+
+    /**
+     * Number of images in delta segments at which they are merged into the
+     * main segment in the background.
+     */
+    public void setMergeThreshold(int mergeThreshold) {
+        this.mergeThreshold = mergeThreshold;
+    }
+
+    /**
+     * Adds images in a new delta segment that is queried alongside the main
+     * index, without retraining it.
+     */
+    public void addImages(List<String> images, List<Mat> descriptors) {
+        if (images.size() != descriptors.size()) {
+            throw new IllegalArgumentException(images.size() + " images with " + descriptors.size() + " descriptors");
+        }
+        Segment delta = new Segment(createIndex(descriptors), new int[descriptors.size()]);
+        String[] names = imageNames(images);
+        synchronized (this) {
+            if (released) {
+                delta.dispose();
+                return;
+            }
+            SegmentedIndex current = generation;
+            int first = current.imageNames.length;
+            for (int i = 0; i < delta.imageIds.length; i++) {
+                delta.imageIds[i] = first + i;
             }
+            String[] imageNames = Arrays.copyOf(current.imageNames, first + names.length);
+            System.arraycopy(names, 0, imageNames, first, names.length);
+            Segment[] segments = Arrays.copyOf(current.segments, current.segments.length + 1);
+            segments[segments.length - 1] = delta;
+            replaceGeneration(current.with(segments, imageNames, current.removed));
         }
-//        System.out.println("Total Matches: "+matches.size());
-        if (matchesPerImage[index] >= minMatches) {
-            return index;
+        if (generation.deltaImages() > mergeThreshold && merging.compareAndSet(false, true)) {
+            if (!retain()) {
+                merging.set(false);
+                return;
+            }
+            // Retained until merged, so a replaced matcher is not released under the merge
+            MERGE_EXECUTOR.execute(() -> {
+                try {
+                    merge();
+                } finally {
+                    merging.set(false);
+                    dispose();
+                }
+            });
+        }
+    }
+
+    /**
+     * Removed images stop receiving votes immediately and are dropped from the
+     * index at the next merge.
+     *
+     * @return the number of images removed
+     */
+    public synchronized int removeImages(Collection<String> names) {
+        if (released) {
+            return 0;
+        }
+        SegmentedIndex current = generation;
+        BitSet removed = (BitSet) current.removed.clone();
+        for (int i = 0; i < current.imageNames.length; i++) {
+            if (names.contains(current.imageNames[i])) {
+                removed.set(i);
+            }
+        }
+        int count = removed.cardinality() - current.removed.cardinality();
+        if (count > 0) {
+            replaceGeneration(current.with(current.segments, current.imageNames, removed));
+        }
+        return count;
+    }
+
+    /**
+     * Rebuilds the main segment from all segments, leaving out removed images.
+     * Images added while the merge runs stay in their delta segments. A
+     * vocabulary tree is not clustered again, only its inverted file is.
+     */
+    public void merge() {
+        synchronized (mergeLock) {
+            SegmentedIndex snapshot = acquireGeneration();
+            if (snapshot == null) {
+                return;
+            }
+            List<Segment> mergedSegments = Arrays.asList(snapshot.segments);
+            Segment merged;
+            try {
+                if (snapshot.segments.length == 1 && snapshot.removed.isEmpty()) {
+                    return;
+                }
+                DescriptorIndex main = snapshot.segments[0].index;
+                if (main instanceof VocabularyTreeIndex && ((VocabularyTreeIndex) main).wordCount() > 1) {
+                    merged = mergeIntoTree((VocabularyTreeIndex) main, snapshot);
+                } else {
+                    merged = mergeDescriptors(snapshot);
+                }
+            } finally {
+                snapshot.dispose();
+            }
+            synchronized (this) {
+                if (released) {
+                    merged.dispose();
+                    return;
+                }
+                SegmentedIndex current = generation;
+                List<Segment> segments = new ArrayList<>();
+                segments.add(merged);
+                for (Segment segment : current.segments) {
+                    if (!mergedSegments.contains(segment)) {
+                        segments.add(segment);
+                    }
+                }
+                replaceGeneration(current.with(segments.toArray(new Segment[segments.size()]), current.imageNames, current.removed));
+            }
         }
-        return -1;
     }
 
-    public void release() {
-        matcher.getTrainDescriptors().stream().forEach((trainDescriptor) -> {
-            trainDescriptor.release();
+    private Segment mergeDescriptors(SegmentedIndex snapshot) {
+        List<Mat> descriptors = new ArrayList<>();
+        List<Integer> imageIds = new ArrayList<>();
+        for (Segment segment : snapshot.segments) {
+            List<Mat> segmentDescriptors = segment.index.trainDescriptors();
+            for (int i = 0; i < segmentDescriptors.size(); i++) {
+                if (snapshot.removed.get(segment.imageIds[i])) {
+                    segmentDescriptors.get(i).release();
+                } else {
+                    descriptors.add(segmentDescriptors.get(i));
+                    imageIds.add(segment.imageIds[i]);
+                }
+            }
+        }
+        Segment merged = new Segment(createMainIndex(descriptors), imageIds.stream().mapToInt(Integer::intValue).toArray());
+        descriptors.stream().forEach((descriptor) -> {
+            descriptor.release();
         });
-        matcher.clear();
+        return merged;
+    }
+
+    /**
+     * Keeps the trained vocabulary tree, whose training descriptors are gone,
+     * and only rebuilds its inverted file with the words of the images.
+     */
+    private static Segment mergeIntoTree(VocabularyTreeIndex tree, SegmentedIndex snapshot) {
+        List<int[]> imageWords = new ArrayList<>();
+        List<Integer> imageIds = new ArrayList<>();
+        for (int s = 0; s < snapshot.segments.length; s++) {
+            Segment segment = snapshot.segments[s];
+            List<Mat> segmentDescriptors = s == 0 ? null : segment.index.trainDescriptors();
+            try {
+                for (int i = 0; i < segment.imageIds.length; i++) {
+                    if (!snapshot.removed.get(segment.imageIds[i])) {
+                        imageWords.add(s == 0 ? tree.imageWords(i) : tree.words(segmentDescriptors.get(i)));
+                        imageIds.add(segment.imageIds[i]);
+                    }
+                }
+            } finally {
+                if (segmentDescriptors != null) {
+                    segmentDescriptors.stream().forEach((descriptor) -> {
+                        descriptor.release();
+                    });
+                }
+            }
+        }
+        return new Segment(tree.withImages(imageWords.toArray(new int[imageWords.size()][])),
+                imageIds.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private void replaceGeneration(SegmentedIndex next) {
+        SegmentedIndex old = generation;
+        generation = next;
+        old.dispose();
+    }
+
+    public int imageCount() {
+        return generation.imageCount();
+    }
+
+    /**
+     * @return 0 once released
+     */
+    public int descriptorCount() {
+        SegmentedIndex index = acquireGeneration();
+        if (index == null) {
+            return 0;
+        }
+        try {
+            return index.descriptorCount();
+        } finally {
+            index.dispose();
+        }
     }
 
-    public void save(String toFile) {
-        matcher.write(toFile);
+    /**
+     * @return approximate bytes held by the index, see
+     * {@link MatcherMetrics#getIndexMemoryBytes()}, 0 once released
+     */
+    public long memoryUsage() {
+        SegmentedIndex index = acquireGeneration();
+        if (index == null) {
+            return 0;
+        }
+        try {
+            return index.memoryUsage();
+        } finally {
+            index.dispose();
+        }
+    }
+
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            generation.dispose();
+        }
+    }
+
+    @Override
+    protected void free() {
+        release();
+    }
+
+    /**
+     * Writes a snapshot of the matcher including its index structure and
+     * image names, see {@link MatcherSnapshot}.
+     */
+    public boolean save(String toFile) {
+        SegmentedIndex index = acquireGeneration();
+        if (index == null) {
+            System.err.println("ERROR: Cannot save a released matcher to file: " + toFile);
+            return false;
+        }
+        try {
+            MatcherSnapshot.write(toFile, index);
+            return true;
+        } catch (IOException ex) {
+            System.err.println("ERROR: Could not save matcher to file: " + toFile);
+            return false;
+        } finally {
+            index.dispose();
+        }
     }
 
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Latency histograms per stage and query counters of one named matcher, plus
+ * the size of the matcher currently registered under the name.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class MatcherMetrics implements MatcherMetricsMXBean {
+
+    private final String name;
+    private final MatcherRegistry matchers;
+    private final Histogram total = new Histogram();
+    private final Histogram[] stages = new Histogram[QueryTrace.STAGES.length];
+    private final Histogram keypoints = new Histogram();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder noMatches = new LongAdder();
+
+    MatcherMetrics(String name, MatcherRegistry matchers) {
+        this.name = name;
+        this.matchers = matchers;
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    void record(QueryTrace trace) {
+        queries.add(trace.getQueries());
+        noMatches.add(trace.getNoMatches());
+        total.record(trace.getTotalNanos());
+        for (Stage stage : QueryTrace.STAGES) {
+            if (trace.hasStage(stage)) {
+                stages[stage.ordinal()].record(trace.getNanos(stage));
+            }
+        }
+        if (trace.hasStage(Stage.DETECT)) {
+            keypoints.record(trace.getKeypoints());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Latency in nanoseconds of whole match calls. A batch is one sample.
+     */
+    public Histogram getLatency() {
+        return total;
+    }
+
+    public Histogram getLatency(Stage stage) {
+        return stages[stage.ordinal()];
+    }
+
+    public Histogram getKeypoints() {
+        return keypoints;
+    }
+
+    @Override
+    public long getQueries() {
+        return queries.sum();
+    }
+
+    @Override
+    public long getNoMatches() {
+        return noMatches.sum();
+    }
+
+    @Override
+    public double getMeanKeypoints() {
+        return keypoints.getMean();
+    }
+
+    @Override
+    public int getImageCount() {
+        return (int) ofMatcher(MatchFinderWrapper::imageCount);
+    }
+
+    @Override
+    public int getDescriptorCount() {
+        return (int) ofMatcher(MatchFinderWrapper::descriptorCount);
+    }
+
+    /**
+     * Descriptors and search structures, in native memory for FLANN and on
+     * the Java heap for Hamming indexes.
+     */
+    @Override
+    public long getIndexMemoryBytes() {
+        return ofMatcher(MatchFinderWrapper::memoryUsage);
+    }
+
+    /**
+     * Reads the matcher only if it is loaded, 0 otherwise.
+     */
+    private long ofMatcher(ToLongFunction<MatchFinderWrapper> property) {
+        MatchFinderWrapper matcher = matchers.acquireLoaded(name);
+        if (matcher == null) {
+            return 0;
+        }
+        try {
+            return property.applyAsLong(matcher);
+        } finally {
+            matcher.dispose();
+        }
+    }
+
+    @Override
+    public Map<String, Double> getMeanMillis() {
+        return millis((histogram) -> histogram.getMean());
+    }
+
+    @Override
+    public Map<String, Double> getP50Millis() {
+        return millis((histogram) -> histogram.getPercentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getP99Millis() {
+        return millis((histogram) -> histogram.getPercentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getMaxMillis() {
+        return millis((histogram) -> histogram.getMax());
+    }
+
+    private Map<String, Double> millis(ToDoubleFunction<Histogram> nanos) {
+        Map<String, Double> millis = new LinkedHashMap<>();
+        for (Stage stage : QueryTrace.STAGES) {
+            millis.put(stage.name(), nanos.applyAsDouble(stages[stage.ordinal()]) / 1e6);
+        }
+        millis.put("TOTAL", nanos.applyAsDouble(total) / 1e6);
+        return millis;
+    }
+
+    @Override
+    public void reset() {
+        total.reset();
+        for (Histogram stage : stages) {
+            stage.reset();
+        }
+        keypoints.reset();
+        queries.reset();
+        noMatches.reset();
+    }
+
+}
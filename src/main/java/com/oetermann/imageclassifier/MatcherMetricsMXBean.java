@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link MatcherMetrics}. Latencies are keyed by
+ * {@link QueryTrace.Stage} name plus {@code TOTAL}.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public interface MatcherMetricsMXBean {
+
+    long getQueries();
+
+    long getNoMatches();
+
+    double getMeanKeypoints();
+
+    int getImageCount();
+
+    int getDescriptorCount();
+
+    long getIndexMemoryBytes();
+
+    Map<String, Double> getMeanMillis();
+
+    Map<String, Double> getP50Millis();
+
+    Map<String, Double> getP99Millis();
+
+    Map<String, Double> getMaxMillis();
+
+    void reset();
+
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Named matchers that can be queried from many threads while being replaced.
+ * A replaced matcher is released once the last query using it has finished.
+ * <p>
+ * Matchers registered with a loader are loaded on first use. While the
+ * resident matchers need more memory than the budget, the least recently
+ * used of those with a loader are evicted, to be loaded again when queried.
+ * Trained matchers, and loaded ones that were changed, cannot be reloaded
+ * and stay resident, but count against the budget. A matcher that failed to
+ * load is not tried again for a while, or until it is registered again.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+class MatcherRegistry {
+
+    private static final long MIN_BACKOFF_MILLIS = 1000, MAX_BACKOFF_MILLIS = 60000;
+
+    private final ConcurrentHashMap<String, MatchFinderWrapper> matchers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Source> sources = new ConcurrentHashMap<>();
+    private final AtomicLong clock = new AtomicLong();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder loadFailures = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final Histogram loadMicros = new Histogram();
+    private volatile long memoryBudget;
+
+    /**
+     * @return the matcher registered under the name, loaded if needed and
+     * retained for the caller who has to
+     * {@link MatchFinderWrapper#dispose() dispose} it, or null
+     */
+    MatchFinderWrapper acquire(String name) {
+        for (;;) {
+            MatchFinderWrapper matcher = matchers.get(name);
+            Source source = sources.get(name);
+            if (matcher == null) {
+                if (source == null || source.isBackingOff()) {
+                    return null;
+                }
+                matcher = load(name, source);
+                if (matcher == null) {
+                    if (sources.get(name) == source) {
+                        return null; // failed to load
+                    }
+                    continue;
+                }
+            }
+            if (matcher.retain()) {
+                if (source != null) {
+                    source.lastUsed = clock.incrementAndGet();
+                }
+                return matcher;
+            }
+            // Replaced, evicted or drained in the meantime, look up the new one
+        }
+    }
+
+    /**
+     * @return the matcher if it is resident, without loading it, see
+     * {@link #acquire(String)}
+     */
+    MatchFinderWrapper acquireLoaded(String name) {
+        for (;;) {
+            MatchFinderWrapper matcher = matchers.get(name);
+            if (matcher == null || matcher.retain()) {
+                return matcher;
+            }
+        }
+    }
+
+    /**
+     * Acquires the matcher to change it, which keeps it resident from now
+     * on, since it could not be loaded with the changes.
+     *
+     * @return the matcher, or null if there is none with that name
+     * @throws IllegalStateException if the matcher is registered but failed
+     * to load, so that it is not replaced by one holding only the changes
+     */
+    MatchFinderWrapper acquireForUpdate(String name) {
+        for (;;) {
+            MatchFinderWrapper matcher = acquire(name);
+            if (matcher == null) {
+                Source source = sources.get(name);
+                if (source == null) {
+                    return null;
+                }
+                if (source.isBackingOff()) {
+                    throw new IllegalStateException("Matcher could not be loaded: " + name);
+                }
+                continue; // registered again in the meantime
+            }
+            synchronized (this) {
+                if (matchers.get(name) == matcher) {
+                    sources.remove(name);
+                    return matcher;
+                }
+            }
+            matcher.dispose();
+        }
+    }
+
+    private MatchFinderWrapper load(String name, Source source) {
+        MatchFinderWrapper matcher;
+        synchronized (source) {
+            matcher = matchers.get(name);
+            if (matcher != null) {
+                return matcher; // loaded by another thread
+            }
+            if (source.isBackingOff()) {
+                return null; // failed in another thread
+            }
+            long start = System.nanoTime();
+            try {
+                matcher = source.loader.get();
+            } catch (RuntimeException ex) {
+                System.err.println("ERROR: Could not load matcher: " + name);
+                loadFailures.increment();
+                source.failed();
+                return null;
+            }
+            source.failures = 0;
+            loadMicros.record((System.nanoTime() - start) / 1000);
+            loads.increment();
+            source.memory = matcher.memoryUsage();
+            source.lastUsed = clock.incrementAndGet();
+            synchronized (this) {
+                if (sources.get(name) != source) {
+                    matcher.dispose(); // replaced while loading
+                    return matchers.get(name);
+                }
+                matchers.put(name, matcher);
+            }
+        }
+        evictOverBudget(name);
+        return matcher;
+    }
+
+    /**
+     * @param memoryBudget bytes, see {@link MatchFinderWrapper#memoryUsage()},
+     * 0 for no limit
+     */
+    void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = Math.max(0, memoryBudget);
+        evictOverBudget(null);
+    }
+
+    long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    private synchronized void evictOverBudget(String keep) {
+        long budget = memoryBudget;
+        if (budget <= 0) {
+            return;
+        }
+        long used = memoryUsage();
+        while (used > budget) {
+            String oldest = null;
+            long oldestUse = Long.MAX_VALUE;
+            for (Map.Entry<String, Source> entry : sources.entrySet()) {
+                String name = entry.getKey();
+                if (!name.equals(keep) && matchers.containsKey(name) && entry.getValue().lastUsed < oldestUse) {
+                    oldest = name;
+                    oldestUse = entry.getValue().lastUsed;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            // Released once the queries still using it have finished
+            matchers.remove(oldest).dispose();
+            used -= sources.get(oldest).memory;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * @return approximate bytes held by the resident matchers
+     */
+    synchronized long memoryUsage() {
+        long used = 0;
+        for (Map.Entry<String, MatchFinderWrapper> entry : matchers.entrySet()) {
+            Source source = sources.get(entry.getKey());
+            if (source != null) {
+                used += source.memory;
+            } else if (entry.getValue().retain()) {
+                try {
+                    used += entry.getValue().memoryUsage();
+                } finally {
+                    entry.getValue().dispose();
+                }
+            }
+        }
+        return used;
+    }
+
+    void put(String name, MatchFinderWrapper matcher) {
+        MatchFinderWrapper old;
+        synchronized (this) {
+            sources.remove(name);
+            old = matchers.put(name, matcher);
+        }
+        if (old != null) {
+            old.dispose();
+        }
+        evictOverBudget(name);
+    }
+
+    /**
+     * Replaces the named matcher with one loaded on first use.
+     */
+    void register(String name, Supplier<MatchFinderWrapper> loader) {
+        MatchFinderWrapper old;
+        synchronized (this) {
+            sources.put(name, new Source(loader));
+            old = matchers.remove(name);
+        }
+        if (old != null) {
+            old.dispose();
+        }
+    }
+
+    boolean remove(String name) {
+        MatchFinderWrapper old;
+        boolean registered;
+        synchronized (this) {
+            registered = sources.remove(name) != null;
+            old = matchers.remove(name);
+        }
+        if (old != null) {
+            old.dispose();
+        }
+        return registered || old != null;
+    }
+
+    boolean contains(String name) {
+        return matchers.containsKey(name) || sources.containsKey(name);
+    }
+
+    boolean isLoaded(String name) {
+        return matchers.containsKey(name);
+    }
+
+    Set<String> names() {
+        Set<String> names = new HashSet<>(matchers.keySet());
+        names.addAll(sources.keySet());
+        return names;
+    }
+
+    int loadedCount() {
+        return matchers.size();
+    }
+
+    long getLoads() {
+        return loads.sum();
+    }
+
+    long getLoadFailures() {
+        return loadFailures.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    Histogram getLoadMicros() {
+        return loadMicros;
+    }
+
+    void resetCounters() {
+        loads.reset();
+        loadFailures.reset();
+        evictions.reset();
+        loadMicros.reset();
+    }
+
+    private static class Source {
+
+        private final Supplier<MatchFinderWrapper> loader;
+        private volatile long lastUsed;
+        private volatile long memory;
+        private volatile int failures;
+        private volatile long retryAt;
+
+        Source(Supplier<MatchFinderWrapper> loader) {
+            this.loader = loader;
+        }
+
+        /**
+         * Queries after a failed load find no matcher until the backoff,
+         * doubling from one second up to a minute, has passed.
+         */
+        boolean isBackingOff() {
+            return failures > 0 && System.nanoTime() - retryAt < 0;
+        }
+
+        void failed() {
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(failures - 1, 16));
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+        }
+    }
+
+}
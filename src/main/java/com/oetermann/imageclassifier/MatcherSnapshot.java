@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import org.opencv.core.Mat;
+
+/**
+ * File format of a trained matcher, holding the image names, removed images
+ * and every segment's index so that it can be queried right after loading:
+ * <pre>
+ * int magic "MSNP" | int version | generation (see {@link SegmentedIndex#write})
+ * </pre>
+ * Values are big endian as written by {@link DataOutputStream}, except for
+ * embedded .descr records.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class MatcherSnapshot {
+
+    static final int MAGIC = 0x4D534E50; // "MSNP"
+    static final int VERSION = 1;
+
+    static final byte FLANN = 0, HAMMING = 1, SHARDED = 2, QUANTIZED = 3, VOCABULARY_TREE = 4;
+
+    private static final int CHUNK = 1 << 16;
+
+    private MatcherSnapshot() {
+    }
+
+    /**
+     * Writes to a temporary file next to the target and moves it in place, so
+     * that a failed write never leaves a truncated snapshot behind.
+     */
+    static void write(String toFile, SegmentedIndex index) throws IOException {
+        Path file = Paths.get(toFile).toAbsolutePath();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), CHUNK))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                index.write(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+    }
+
+    static SegmentedIndex read(String fromFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fromFile), CHUNK))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a matcher snapshot: " + fromFile);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported matcher snapshot version " + version + ": " + fromFile);
+            }
+            return SegmentedIndex.read(in);
+        }
+    }
+
+    static boolean isSnapshot(String file) {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == MAGIC;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    static void writeIndex(DataOutputStream out, DescriptorIndex index) throws IOException {
+        if (index instanceof FlannIndex) {
+            out.writeByte(FLANN);
+        } else if (index instanceof HammingIndex) {
+            out.writeByte(HAMMING);
+        } else if (index instanceof ShardedIndex) {
+            out.writeByte(SHARDED);
+        } else if (index instanceof QuantizedIndex) {
+            out.writeByte(QUANTIZED);
+        } else if (index instanceof VocabularyTreeIndex) {
+            out.writeByte(VOCABULARY_TREE);
+        } else {
+            throw new IOException("Cannot write index of type " + index.getClass().getSimpleName());
+        }
+        index.write(out);
+    }
+
+    static DescriptorIndex readIndex(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case FLANN:
+                return FlannIndex.read(in);
+            case HAMMING:
+                return HammingIndex.read(in);
+            case SHARDED:
+                return ShardedIndex.read(in);
+            case QUANTIZED:
+                return QuantizedIndex.read(in);
+            case VOCABULARY_TREE:
+                return VocabularyTreeIndex.read(in);
+            default:
+                throw new IOException("Unknown index type " + type);
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+        for (int offset = 0; offset < values.length; offset += CHUNK / 4) {
+            int length = Math.min(CHUNK / 4, values.length - offset);
+            buffer.asIntBuffer().put(values, offset, length);
+            out.write(buffer.array(), 0, length * 4);
+        }
+    }
+
+    static int[] readInts(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        int[] values = new int[Math.min(count, CHUNK / 4)];
+        byte[] chunk = new byte[CHUNK];
+        for (int offset = 0; offset < count; offset += CHUNK / 4) {
+            int length = Math.min(CHUNK / 4, count - offset);
+            in.readFully(chunk, 0, length * 4);
+            if (offset + length > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(count, 2L * values.length));
+            }
+            ByteBuffer.wrap(chunk).asIntBuffer().get(values, offset, length);
+        }
+        return values;
+    }
+
+    static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        out.writeInt(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+        for (int offset = 0; offset < values.length; offset += CHUNK / 8) {
+            int length = Math.min(CHUNK / 8, values.length - offset);
+            buffer.asLongBuffer().put(values, offset, length);
+            out.write(buffer.array(), 0, length * 8);
+        }
+    }
+
+    static long[] readLongs(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        long[] values = new long[Math.min(count, CHUNK / 8)];
+        byte[] chunk = new byte[CHUNK];
+        for (int offset = 0; offset < count; offset += CHUNK / 8) {
+            int length = Math.min(CHUNK / 8, count - offset);
+            in.readFully(chunk, 0, length * 8);
+            if (offset + length > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(count, 2L * values.length));
+            }
+            ByteBuffer.wrap(chunk).asLongBuffer().get(values, offset, length);
+        }
+        return values;
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        out.writeInt(values.length);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK);
+        for (int offset = 0; offset < values.length; offset += CHUNK / 4) {
+            int length = Math.min(CHUNK / 4, values.length - offset);
+            buffer.asFloatBuffer().put(values, offset, length);
+            out.write(buffer.array(), 0, length * 4);
+        }
+    }
+
+    static float[] readFloats(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        float[] values = new float[Math.min(count, CHUNK / 4)];
+        byte[] chunk = new byte[CHUNK];
+        for (int offset = 0; offset < count; offset += CHUNK / 4) {
+            int length = Math.min(CHUNK / 4, count - offset);
+            in.readFully(chunk, 0, length * 4);
+            if (offset + length > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(count, 2L * values.length));
+            }
+            ByteBuffer.wrap(chunk).asFloatBuffer().get(values, offset, length);
+        }
+        return values;
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+        out.writeInt(values.length);
+        out.write(values);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int count = readLength(in);
+        byte[] values = new byte[Math.min(count, CHUNK)];
+        for (int offset = 0; offset < count; offset += CHUNK) {
+            int length = Math.min(CHUNK, count - offset);
+            if (offset + length > values.length) {
+                values = Arrays.copyOf(values, (int) Math.min(count, 2L * values.length));
+            }
+            in.readFully(values, offset, length);
+        }
+        return values;
+    }
+
+    /**
+     * Arrays are allocated as their data arrives, so a corrupt length ends in
+     * an {@link java.io.EOFException} rather than a huge allocation.
+     */
+    static int readLength(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupt matcher snapshot, negative length " + length);
+        }
+        return length;
+    }
+
+    static void writeMat(DataOutputStream out, Mat mat) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(DescriptorIO.HEADER_SIZE + DescriptorIO.dataSize(mat))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        DescriptorIO.writeHeader(buffer, mat);
+        DescriptorIO.writeData(buffer, mat);
+        out.writeInt(buffer.capacity());
+        out.write(buffer.array());
+    }
+
+    static Mat readMat(DataInputStream in) throws IOException {
+        byte[] record = readBytes(in);
+        return DescriptorIO.readMat(ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN), "matcher snapshot");
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Prepares an image for keypoint detection, in place. Set on a
+ * {@link DescriptorExtractorWrapper} it runs before every detection, so
+ * training and query images are treated the same way. Steps are chained with
+ * {@link #andThen(Preprocessor)} or {@link #of(Preprocessor...)}. The
+ * {@code toString()} of the built-in steps describes their settings, which
+ * {@link DescriptorCache} relies on to notice configuration changes; give
+ * custom steps a stable description with {@link #named(String, Preprocessor)}.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+@FunctionalInterface
+public interface Preprocessor {
+
+    void apply(Mat image);
+
+    default Preprocessor andThen(Preprocessor next) {
+        return named(this + "," + next, (image) -> {
+            apply(image);
+            next.apply(image);
+        });
+    }
+
+    static Preprocessor of(Preprocessor... steps) {
+        StringBuilder name = new StringBuilder();
+        for (Preprocessor step : steps) {
+            name.append(name.length() > 0 ? "," : "").append(step);
+        }
+        return named(name.toString(), (image) -> {
+            for (Preprocessor step : steps) {
+                step.apply(image);
+            }
+        });
+    }
+
+    static Preprocessor named(String name, Preprocessor step) {
+        return new Preprocessor() {
+            @Override
+            public void apply(Mat image) {
+                step.apply(image);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        };
+    }
+
+    /**
+     * Converts BGR and BGRA images to a single channel.
+     */
+    static Preprocessor grayscale() {
+        return named("grayscale", (image) -> {
+            if (image.channels() == 3) {
+                Imgproc.cvtColor(image, image, Imgproc.COLOR_BGR2GRAY);
+            } else if (image.channels() == 4) {
+                Imgproc.cvtColor(image, image, Imgproc.COLOR_BGRA2GRAY);
+            }
+        });
+    }
+
+    /**
+     * Shrinks images whose width or height exceeds maxDimension, keeping the
+     * aspect ratio. Smaller images are left alone.
+     */
+    static Preprocessor maxDimension(int maxDimension) {
+        return named("maxDimension(" + maxDimension + ")", (image) -> {
+            int largest = Math.max(image.cols(), image.rows());
+            if (largest > maxDimension) {
+                double scale = maxDimension / (double) largest;
+                Size size = new Size(Math.max(1, Math.round(image.cols() * scale)), Math.max(1, Math.round(image.rows() * scale)));
+                Imgproc.resize(image, image, size, 0, 0, Imgproc.INTER_AREA);
+            }
+        });
+    }
+
+    /**
+     * Equalizes single channel images, others are left alone.
+     */
+    static Preprocessor equalizeHistogram() {
+        return named("equalizeHistogram", (image) -> {
+            if (!image.empty() && image.channels() == 1) {
+                Imgproc.equalizeHist(image, image);
+            }
+        });
+    }
+
+    /**
+     * Keeps a region given as fractions of the image size, e.g.
+     * {@code crop(0.1, 0.1, 0.8, 0.8)} cuts a tenth off every side.
+     */
+    static Preprocessor crop(double left, double top, double width, double height) {
+        return named("crop(" + left + "," + top + "," + width + "," + height + ")", (image) -> {
+            int x = (int) Math.round(image.cols() * left);
+            int y = (int) Math.round(image.rows() * top);
+            crop(image, new Rect(x, y, (int) Math.round(image.cols() * width), (int) Math.round(image.rows() * height)));
+        });
+    }
+
+    /**
+     * Keeps a region given in pixels, clipped to the image.
+     */
+    static Preprocessor crop(Rect roi) {
+        return named("crop(" + roi.x + "," + roi.y + "," + roi.width + "," + roi.height + ")", (image) -> {
+            crop(image, roi);
+        });
+    }
+
+    static void crop(Mat image, Rect roi) {
+        int x = Math.max(0, Math.min(roi.x, image.cols()));
+        int y = Math.max(0, Math.min(roi.y, image.rows()));
+        int width = Math.min(roi.width, image.cols() - x);
+        int height = Math.min(roi.height, image.rows() - y);
+        if (width <= 0 || height <= 0 || (width == image.cols() && height == image.rows())) {
+            return;
+        }
+        Mat region = image.submat(new Rect(x, y, width, height));
+        Mat copy = region.clone();
+        region.release();
+        copy.copyTo(image);
+        copy.release();
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+/**
+ * Compressed representations of float descriptors (SURF), for matchers and
+ * for .descr files. Binary descriptors are never quantized, they are already
+ * one bit per dimension.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public enum Quantization {
+
+    /**
+     * Half precision floats, 2x smaller and practically lossless.
+     */
+    FP16,
+    /**
+     * One byte per dimension, scaled to the range of each dimension over all
+     * descriptors, 4x smaller.
+     */
+    INT8,
+    /**
+     * Product quantization, one byte per four dimensions, 16x smaller.
+     * Distances are computed asymmetrically, from the exact query descriptor
+     * to the coded training descriptor. Only for matchers.
+     */
+    PQ,
+    /**
+     * Product quantization with an {@link #INT8} copy that re-ranks a
+     * shortlist of the nearest coded descriptors, about 3x smaller but close
+     * to INT8 accuracy at PQ search speed. Only for matchers.
+     */
+    PQ_INT8;
+
+    /**
+     * @return whether .descr files can be stored this way, product
+     * quantization needs codebooks trained over a whole matcher
+     */
+    public boolean isStorable() {
+        return this == FP16 || this == INT8;
+    }
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+/**
+ * Compressed search over float descriptors (SURF), see {@link Quantization}.
+ * An inverted file of k-means centroids narrows every query descriptor down
+ * to the lists of its nearest centroids, which are scanned comparing the
+ * exact query against the coded training descriptors. Distances are
+ * compared squared and voted on as the Euclidean distances FLANN reports, so
+ * votes weigh the same as with a {@link FlannIndex}.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class QuantizedIndex implements DescriptorIndex {
+
+    static final int DEFAULT_PROBES = 8, SHORTLIST = 16;
+    private static final int CENTROIDS = 256, MAX_LISTS = 1024, SAMPLES_PER_CENTROID = 32, KMEANS_ITERATIONS = 10;
+    private static final long SEED = 0x5EEDL;
+
+    private final Quantization quantization;
+    private final int images, descriptors, dims, subspaceDims, subspaces, codeSize;
+    /**
+     * Centroids per subspace, fewer than 256 for small training sets.
+     */
+    private final int codewords;
+    private final float[] centroids;
+    private final float[] min, scale;
+    private final float[] codebooks;
+    private final int[][] imageOf;
+    private final byte[][] codes;
+
+    QuantizedIndex(List<Mat> descriptorsPerImage, Quantization quantization) {
+        int cols = 0, rows = 0;
+        for (Mat descriptor : descriptorsPerImage) {
+            if (descriptor.empty()) {
+                continue;
+            }
+            if (cols != 0 && descriptor.cols() != cols) {
+                throw new IllegalArgumentException("Descriptors must be rows of equal length");
+            }
+            cols = descriptor.cols();
+            rows += descriptor.rows();
+        }
+        this.quantization = quantization;
+        this.images = descriptorsPerImage.size();
+        this.descriptors = rows;
+        this.dims = cols;
+        this.subspaceDims = subspaceDims(dims);
+        this.subspaces = dims / subspaceDims;
+        this.codeSize = codeSize(quantization, dims, subspaces);
+        int lists = descriptors == 0 ? 0 : Math.max(1, Math.min(MAX_LISTS, (int) Math.sqrt(descriptors)));
+        int sampleRows = Math.min(descriptors, Math.max(lists, CENTROIDS) * SAMPLES_PER_CENTROID);
+
+        float[] sample = new float[sampleRows * dims];
+        boolean int8 = quantization == Quantization.INT8 || quantization == Quantization.PQ_INT8;
+        min = new float[int8 ? dims : 0];
+        scale = new float[int8 ? dims : 0];
+        float[] max = new float[min.length];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+        Random random = new Random(SEED);
+        int seen = 0;
+        for (Mat descriptor : descriptorsPerImage) {
+            if (descriptor.empty()) {
+                continue;
+            }
+            float[] data = floats(descriptor);
+            for (int row = 0; row < descriptor.rows(); row++, seen++) {
+                int slot = seen < sampleRows ? seen : random.nextInt(seen + 1);
+                if (slot < sampleRows) {
+                    System.arraycopy(data, row * dims, sample, slot * dims, dims);
+                }
+                for (int j = 0; j < min.length; j++) {
+                    min[j] = Math.min(min[j], data[row * dims + j]);
+                    max[j] = Math.max(max[j], data[row * dims + j]);
+                }
+            }
+        }
+        for (int j = 0; j < scale.length; j++) {
+            scale[j] = (max[j] - min[j]) / 255;
+        }
+        centroids = lists == 0 ? new float[0] : kmeans(sample, sampleRows, dims, 0, dims, lists);
+        if (quantization == Quantization.PQ || quantization == Quantization.PQ_INT8) {
+            codewords = Math.min(CENTROIDS, sampleRows);
+            codebooks = new float[subspaces * codewords * subspaceDims];
+            for (int s = 0; s < subspaces && codewords > 0; s++) {
+                float[] codebook = kmeans(sample, sampleRows, dims, s * subspaceDims, subspaceDims, codewords);
+                System.arraycopy(codebook, 0, codebooks, s * codewords * subspaceDims, codewords * subspaceDims);
+            }
+        } else {
+            codewords = 0;
+            codebooks = new float[0];
+        }
+
+        int[] firstRow = new int[images + 1];
+        for (int image = 0; image < images; image++) {
+            Mat descriptor = descriptorsPerImage.get(image);
+            firstRow[image + 1] = firstRow[image] + (descriptor.empty() ? 0 : descriptor.rows());
+        }
+        int[] assignment = new int[descriptors];
+        IntStream.range(0, images).parallel().forEach((image) -> {
+            Mat descriptor = descriptorsPerImage.get(image);
+            if (descriptor.empty()) {
+                return;
+            }
+            float[] data = floats(descriptor);
+            for (int row = 0; row < descriptor.rows(); row++) {
+                assignment[firstRow[image] + row] = nearestCentroid(data, row * dims);
+            }
+        });
+        int[] listSizes = new int[lists];
+        for (int list : assignment) {
+            listSizes[list]++;
+        }
+        imageOf = new int[lists][];
+        codes = new byte[lists][];
+        for (int list = 0; list < lists; list++) {
+            imageOf[list] = new int[listSizes[list]];
+            codes[list] = new byte[listSizes[list] * codeSize];
+        }
+        int[] position = new int[descriptors];
+        int[] filled = new int[lists];
+        for (int image = 0; image < images; image++) {
+            for (int id = firstRow[image]; id < firstRow[image + 1]; id++) {
+                int list = assignment[id];
+                position[id] = filled[list]++;
+                imageOf[list][position[id]] = image;
+            }
+        }
+        IntStream.range(0, images).parallel().forEach((image) -> {
+            Mat descriptor = descriptorsPerImage.get(image);
+            if (descriptor.empty()) {
+                return;
+            }
+            float[] data = floats(descriptor);
+            for (int row = 0; row < descriptor.rows(); row++) {
+                int id = firstRow[image] + row;
+                encode(data, row * dims, codes[assignment[id]], position[id] * codeSize);
+            }
+        });
+    }
+
+    private QuantizedIndex(Quantization quantization, int images, int dims, float[] centroids, float[] min, float[] scale,
+            float[] codebooks, int[][] imageOf, byte[][] codes) {
+        this.quantization = quantization;
+        this.images = images;
+        this.descriptors = Arrays.stream(imageOf).mapToInt((list) -> list.length).sum();
+        this.dims = dims;
+        this.subspaceDims = subspaceDims(dims);
+        this.subspaces = dims / subspaceDims;
+        this.codeSize = codeSize(quantization, dims, subspaces);
+        this.codewords = subspaces == 0 ? 0 : codebooks.length / (subspaces * subspaceDims);
+        this.centroids = centroids;
+        this.min = min;
+        this.scale = scale;
+        this.codebooks = codebooks;
+        this.imageOf = imageOf;
+        this.codes = codes;
+    }
+
+    private static int subspaceDims(int dims) {
+        return dims % 4 == 0 ? 4 : dims % 2 == 0 ? 2 : 1;
+    }
+
+    private static int codeSize(Quantization quantization, int dims, int subspaces) {
+        switch (quantization) {
+            case FP16:
+                return dims * 2;
+            case INT8:
+                return dims;
+            case PQ:
+                return subspaces;
+            case PQ_INT8:
+            default:
+                return subspaces + dims;
+        }
+    }
+
+    Quantization quantization() {
+        return quantization;
+    }
+
+    /**
+     * <pre>
+     * byte quantization | int images | int dims | float[] centroids | float[] min | float[] scale
+     * | float[] codebooks | int lists | lists times (int[] imageOf | byte[] codes)
+     * </pre>
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeByte(quantization.ordinal());
+        out.writeInt(images);
+        out.writeInt(dims);
+        MatcherSnapshot.writeFloats(out, centroids);
+        MatcherSnapshot.writeFloats(out, min);
+        MatcherSnapshot.writeFloats(out, scale);
+        MatcherSnapshot.writeFloats(out, codebooks);
+        out.writeInt(codes.length);
+        for (int list = 0; list < codes.length; list++) {
+            MatcherSnapshot.writeInts(out, imageOf[list]);
+            MatcherSnapshot.writeBytes(out, codes[list]);
+        }
+    }
+
+    static QuantizedIndex read(DataInputStream in) throws IOException {
+        int ordinal = in.readByte();
+        if (ordinal < 0 || ordinal >= Quantization.values().length) {
+            throw new IOException("Unknown quantization " + ordinal);
+        }
+        Quantization quantization = Quantization.values()[ordinal];
+        int images = MatcherSnapshot.readLength(in);
+        int dims = MatcherSnapshot.readLength(in);
+        float[] centroids = MatcherSnapshot.readFloats(in);
+        float[] min = MatcherSnapshot.readFloats(in);
+        float[] scale = MatcherSnapshot.readFloats(in);
+        float[] codebooks = MatcherSnapshot.readFloats(in);
+        int lists = MatcherSnapshot.readLength(in);
+        boolean int8 = quantization == Quantization.INT8 || quantization == Quantization.PQ_INT8;
+        boolean pq = quantization == Quantization.PQ || quantization == Quantization.PQ_INT8;
+        // The codebooks hold up to CENTROIDS codewords of every subspace, dims floats per codeword
+        boolean codebooksValid = pq
+                ? codebooks.length <= (long) CENTROIDS * dims && (dims == 0 || codebooks.length % dims == 0)
+                : codebooks.length == 0;
+        if (lists > MAX_LISTS || centroids.length != (long) lists * dims || !codebooksValid
+                || min.length != (int8 ? dims : 0) || scale.length != min.length) {
+            throw new IOException("Corrupt quantized index");
+        }
+        int codeSize = codeSize(quantization, dims, dims / subspaceDims(dims));
+        int[][] imageOf = new int[lists][];
+        byte[][] codes = new byte[lists][];
+        for (int list = 0; list < lists; list++) {
+            imageOf[list] = MatcherSnapshot.readInts(in);
+            codes[list] = MatcherSnapshot.readBytes(in);
+            if (codes[list].length != (long) imageOf[list].length * codeSize
+                    || Arrays.stream(imageOf[list]).anyMatch((image) -> image < 0 || image >= images)) {
+                throw new IOException("Corrupt quantized index");
+            }
+        }
+        return new QuantizedIndex(quantization, images, dims, centroids, min, scale, codebooks, imageOf, codes);
+    }
+
+    private static float[] floats(Mat descriptor) {
+        Mat source = descriptor;
+        if (descriptor.depth() != CvType.CV_32F) {
+            source = new Mat();
+            descriptor.convertTo(source, CvType.CV_32F);
+        }
+        float[] data = new float[descriptor.rows() * descriptor.cols()];
+        source.get(0, 0, data);
+        if (source != descriptor) {
+            source.release();
+        }
+        return data;
+    }
+
+    /**
+     * Clusters the given columns of the sample rows.
+     *
+     * @return k centroids of width floats each
+     */
+    private static float[] kmeans(float[] sample, int rows, int cols, int offset, int width, int k) {
+        float[] data = new float[rows * width];
+        for (int row = 0; row < rows; row++) {
+            System.arraycopy(sample, row * cols + offset, data, row * width, width);
+        }
+        Mat samples = new Mat(rows, width, CvType.CV_32F);
+        Mat labels = new Mat();
+        Mat centers = new Mat();
+        try {
+            samples.put(0, 0, data);
+            Core.kmeans(samples, k, labels, new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, KMEANS_ITERATIONS, 1e-4),
+                    1, Core.KMEANS_PP_CENTERS, centers);
+            float[] result = new float[k * width];
+            centers.get(0, 0, result);
+            return result;
+        } finally {
+            samples.release();
+            labels.release();
+            centers.release();
+        }
+    }
+
+    private int nearestCentroid(float[] data, int offset) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int list = 0; list < centroids.length / dims; list++) {
+            float distance = distance(data, offset, centroids, list * dims, dims, bestDistance);
+            if (distance < bestDistance) {
+                best = list;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Squared distance, stopping early once it reaches the bound.
+     */
+    private static float distance(float[] a, int aOffset, float[] b, int bOffset, int length, float bound) {
+        float distance = 0;
+        for (int j = 0; j < length && distance < bound; j++) {
+            float difference = a[aOffset + j] - b[bOffset + j];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    private void encode(float[] data, int offset, byte[] code, int at) {
+        switch (quantization) {
+            case FP16:
+                for (int j = 0; j < dims; j++) {
+                    short half = Float16.fromFloat(data[offset + j]);
+                    code[at + 2 * j] = (byte) half;
+                    code[at + 2 * j + 1] = (byte) (half >>> 8);
+                }
+                break;
+            case INT8:
+                encodeInt8(data, offset, code, at);
+                break;
+            case PQ:
+                encodeProduct(data, offset, code, at);
+                break;
+            case PQ_INT8:
+                encodeProduct(data, offset, code, at);
+                encodeInt8(data, offset, code, at + subspaces);
+                break;
+        }
+    }
+
+    private void encodeInt8(float[] data, int offset, byte[] code, int at) {
+        for (int j = 0; j < dims; j++) {
+            int level = scale[j] > 0 ? Math.round((data[offset + j] - min[j]) / scale[j]) : 0;
+            code[at + j] = (byte) Math.max(0, Math.min(255, level));
+        }
+    }
+
+    private void encodeProduct(float[] data, int offset, byte[] code, int at) {
+        for (int s = 0; s < subspaces; s++) {
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int c = 0; c < codewords; c++) {
+                float distance = distance(data, offset + s * subspaceDims, codebooks, (s * codewords + c) * subspaceDims, subspaceDims, bestDistance);
+                if (distance < bestDistance) {
+                    best = c;
+                    bestDistance = distance;
+                }
+            }
+            code[at + s] = (byte) best;
+        }
+    }
+
+    @Override
+    public int imageCount() {
+        return images;
+    }
+
+    @Override
+    public int descriptorCount() {
+        return descriptors;
+    }
+
+    /**
+     * The scratch floats hold the query rows, the query minus the INT8
+     * offsets, the product quantization distance table, then the distances
+     * of probed lists and shortlisted candidates. The scratch ints hold the
+     * probed lists and the shortlist's list and position pairs.
+     */
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        if (queryDescriptors.empty() || descriptors == 0) {
+            return;
+        }
+        if (queryDescriptors.cols() != dims) {
+            throw new IllegalArgumentException("Query descriptors do not match the index: "
+                    + queryDescriptors.cols() + " instead of " + dims + " columns");
+        }
+        QueryScratch scratch = QueryScratch.forThread();
+        long start = trace.start();
+        Mat query = queryDescriptors;
+        if (query.depth() != CvType.CV_32F) {
+            queryDescriptors.convertTo(scratch.converted, CvType.CV_32F);
+            query = scratch.converted;
+        }
+        int rows = query.rows();
+        int lists = codes.length;
+        int probes = Math.min(DEFAULT_PROBES, lists);
+        boolean product = quantization == Quantization.PQ || quantization == Quantization.PQ_INT8;
+        int capacity = quantization == Quantization.PQ_INT8 ? SHORTLIST : 1;
+        int offsetsAt = rows * dims;
+        int tableAt = offsetsAt + dims;
+        int probeDistancesAt = tableAt + (product ? subspaces * codewords : 0);
+        int candidateDistancesAt = probeDistancesAt + probes;
+        float[] floats = scratch.quantizedFloats(candidateDistancesAt + capacity);
+        int[] ints = scratch.quantizedInts(probes + 2 * capacity);
+        query.get(0, 0, floats);
+        start = trace.lap(Stage.CONVERT, start);
+        for (int row = 0; row < rows; row++) {
+            int q = row * dims;
+            int probed = 0;
+            for (int list = 0; list < lists; list++) {
+                float bound = probed == probes ? floats[probeDistancesAt + probes - 1] : Float.MAX_VALUE;
+                float distance = distance(floats, q, centroids, list * dims, dims, bound);
+                if (distance < bound) {
+                    int k = Math.min(probed, probes - 1);
+                    for (; k > 0 && floats[probeDistancesAt + k - 1] > distance; k--) {
+                        floats[probeDistancesAt + k] = floats[probeDistancesAt + k - 1];
+                        ints[k] = ints[k - 1];
+                    }
+                    floats[probeDistancesAt + k] = distance;
+                    ints[k] = list;
+                    probed = Math.min(probed + 1, probes);
+                }
+            }
+            for (int j = 0; j < min.length; j++) {
+                floats[offsetsAt + j] = floats[q + j] - min[j];
+            }
+            if (product) {
+                for (int c = 0; c < subspaces * codewords; c++) {
+                    floats[tableAt + c] = distance(floats, q + c / codewords * subspaceDims, codebooks, c * subspaceDims, subspaceDims, Float.MAX_VALUE);
+                }
+            }
+            int found = 0;
+            float worst = Float.MAX_VALUE;
+            for (int p = 0; p < probed; p++) {
+                int list = ints[p];
+                byte[] listCodes = codes[list];
+                for (int i = 0; i < imageOf[list].length; i++) {
+                    int at = i * codeSize;
+                    float distance;
+                    if (product) {
+                        distance = productDistance(floats, tableAt, listCodes, at, worst);
+                    } else if (quantization == Quantization.INT8) {
+                        distance = int8Distance(floats, offsetsAt, listCodes, at, worst);
+                    } else {
+                        distance = fp16Distance(floats, q, listCodes, at, worst);
+                    }
+                    if (distance < worst) {
+                        int k = Math.min(found, capacity - 1);
+                        for (; k > 0 && floats[candidateDistancesAt + k - 1] > distance; k--) {
+                            floats[candidateDistancesAt + k] = floats[candidateDistancesAt + k - 1];
+                            ints[probes + 2 * k] = ints[probes + 2 * k - 2];
+                            ints[probes + 2 * k + 1] = ints[probes + 2 * k - 1];
+                        }
+                        floats[candidateDistancesAt + k] = distance;
+                        ints[probes + 2 * k] = list;
+                        ints[probes + 2 * k + 1] = i;
+                        found = Math.min(found + 1, capacity);
+                        worst = found == capacity ? floats[candidateDistancesAt + capacity - 1] : Float.MAX_VALUE;
+                    }
+                }
+            }
+            if (found == 0) {
+                continue;
+            }
+            int best = 0;
+            float bestDistance = floats[candidateDistancesAt];
+            if (quantization == Quantization.PQ_INT8) {
+                bestDistance = Float.MAX_VALUE;
+                for (int k = 0; k < found; k++) {
+                    int list = ints[probes + 2 * k];
+                    int at = ints[probes + 2 * k + 1] * codeSize + subspaces;
+                    float distance = int8Distance(floats, offsetsAt, codes[list], at, bestDistance);
+                    if (distance < bestDistance) {
+                        best = k;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            int image = imageOf[ints[probes + 2 * best]][ints[probes + 2 * best + 1]];
+            collector.collect(row, image, FlannIndex.weight((float) Math.sqrt(bestDistance)));
+        }
+        trace.lap(Stage.SEARCH, start);
+    }
+
+    private float fp16Distance(float[] query, int offset, byte[] code, int at, float bound) {
+        float distance = 0;
+        for (int j = 0; j < dims && distance < bound; j++) {
+            short half = (short) ((code[at + 2 * j] & 0xFF) | (code[at + 2 * j + 1] << 8));
+            float difference = query[offset + j] - Float16.toFloat(half);
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    /**
+     * @param offset of the query minus the per dimension minimum
+     */
+    private float int8Distance(float[] query, int offset, byte[] code, int at, float bound) {
+        float distance = 0;
+        for (int j = 0; j < dims && distance < bound; j++) {
+            float difference = query[offset + j] - (code[at + j] & 0xFF) * scale[j];
+            distance += difference * difference;
+        }
+        return distance;
+    }
+
+    private float productDistance(float[] floats, int tableAt, byte[] code, int at, float bound) {
+        float distance = 0;
+        for (int s = 0; s < subspaces && distance < bound; s++) {
+            distance += floats[tableAt + s * codewords + (code[at + s] & 0xFF)];
+        }
+        return distance;
+    }
+
+    /**
+     * Decodes the training descriptors, so they are only approximately the
+     * descriptors the index was built from. Rebuilding an index from them,
+     * as merges do, loses a little more precision every time.
+     */
+    @Override
+    public List<Mat> trainDescriptors() {
+        int[] rows = new int[images];
+        for (int[] list : imageOf) {
+            for (int image : list) {
+                rows[image]++;
+            }
+        }
+        float[][] data = new float[images][];
+        for (int image = 0; image < images; image++) {
+            data[image] = new float[rows[image] * dims];
+        }
+        int[] filled = new int[images];
+        for (int list = 0; list < codes.length; list++) {
+            for (int i = 0; i < imageOf[list].length; i++) {
+                int image = imageOf[list][i];
+                decode(codes[list], i * codeSize, data[image], filled[image]++ * dims);
+            }
+        }
+        List<Mat> descriptorsPerImage = new ArrayList<>(images);
+        for (int image = 0; image < images; image++) {
+            Mat descriptor = new Mat(rows[image], dims, CvType.CV_32F);
+            if (rows[image] > 0) {
+                descriptor.put(0, 0, data[image]);
+            }
+            descriptorsPerImage.add(descriptor);
+        }
+        return descriptorsPerImage;
+    }
+
+    private void decode(byte[] code, int at, float[] data, int offset) {
+        switch (quantization) {
+            case FP16:
+                for (int j = 0; j < dims; j++) {
+                    data[offset + j] = Float16.toFloat((short) ((code[at + 2 * j] & 0xFF) | (code[at + 2 * j + 1] << 8)));
+                }
+                break;
+            case PQ:
+                for (int s = 0; s < subspaces; s++) {
+                    System.arraycopy(codebooks, (s * codewords + (code[at + s] & 0xFF)) * subspaceDims, data, offset + s * subspaceDims, subspaceDims);
+                }
+                break;
+            case INT8:
+                decodeInt8(code, at, data, offset);
+                break;
+            case PQ_INT8:
+                decodeInt8(code, at + subspaces, data, offset);
+                break;
+        }
+    }
+
+    private void decodeInt8(byte[] code, int at, float[] data, int offset) {
+        for (int j = 0; j < dims; j++) {
+            data[offset + j] = min[j] + (code[at + j] & 0xFF) * scale[j];
+        }
+    }
+
+    @Override
+    public long memoryUsage() {
+        long usage = (centroids.length + min.length + scale.length + codebooks.length) * 4L;
+        for (int list = 0; list < codes.length; list++) {
+            usage += codes[list].length + imageOf[list].length * 4L;
+        }
+        return usage;
+    }
+
+    @Override
+    public void release() {
+        // Lives on the Java heap
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+
+/**
+ * Per thread buffers for the indexes' match calls, so a query in steady state
+ * allocates neither Java arrays nor native Mats. The arrays only grow. Each
+ * index type uses its own buffers, so a {@link SegmentedIndex} can hand the
+ * same thread's scratch down to its segments. Indexes that are never nested
+ * in one another may share buffers.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class QueryScratch {
+
+    private static final ThreadLocal<QueryScratch> SCRATCH = ThreadLocal.withInitial(QueryScratch::new);
+
+    final MatOfDMatch matches = MatTracker.track(new MatOfDMatch(), "QueryScratch.matches");
+    final Mat converted = MatTracker.track(new Mat(), "QueryScratch.converted");
+    private float[] floats = new float[0];
+    private byte[] bytes = new byte[0];
+    private long[] longs = new long[0];
+    private int[] ints = new int[0];
+    private double[] doubles = new double[0];
+    private int[] shardImages = new int[0];
+    private double[] shardWeights = new double[0];
+    private float[] quantizedFloats = new float[0];
+    private int[] quantizedInts = new int[0];
+    private int[] vocabularyInts = new int[0];
+    private double[] vocabularyScores = new double[0];
+
+    static QueryScratch forThread() {
+        return SCRATCH.get();
+    }
+
+    float[] floats(int length) {
+        if (floats.length < length) {
+            floats = new float[length];
+        }
+        return floats;
+    }
+
+    byte[] bytes(int length) {
+        if (bytes.length < length) {
+            bytes = new byte[length];
+        }
+        return bytes;
+    }
+
+    long[] longs(int length) {
+        if (longs.length < length) {
+            longs = new long[length];
+        }
+        return longs;
+    }
+
+    int[] ints(int length) {
+        if (ints.length < length) {
+            ints = new int[length];
+        }
+        return ints;
+    }
+
+    double[] doubles(int length) {
+        if (doubles.length < length) {
+            doubles = new double[length];
+        }
+        return doubles;
+    }
+
+    int[] shardImages(int length) {
+        if (shardImages.length < length) {
+            shardImages = new int[length];
+        }
+        return shardImages;
+    }
+
+    double[] shardWeights(int length) {
+        if (shardWeights.length < length) {
+            shardWeights = new double[length];
+        }
+        return shardWeights;
+    }
+
+    float[] quantizedFloats(int length) {
+        if (quantizedFloats.length < length) {
+            quantizedFloats = new float[length];
+        }
+        return quantizedFloats;
+    }
+
+    int[] quantizedInts(int length) {
+        if (quantizedInts.length < length) {
+            quantizedInts = new int[length];
+        }
+        return quantizedInts;
+    }
+
+    int[] vocabularyInts(int length) {
+        if (vocabularyInts.length < length) {
+            vocabularyInts = new int[length];
+        }
+        return vocabularyInts;
+    }
+
+    /**
+     * Zero between calls, the index clears the entries it touched.
+     */
+    double[] vocabularyScores(int length) {
+        if (vocabularyScores.length < length) {
+            vocabularyScores = new double[length];
+        }
+        return vocabularyScores;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Time spent in each stage of classifying one query, or one batch of
+ * queries. Traces are only created while metrics are enabled, otherwise the
+ * shared {@link #NONE} trace is passed along, which never reads the clock.
+ * <p>
+ * A trace also carries the deadline and cancellation of an asynchronous
+ * query, which are checked between the stages.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public final class QueryTrace {
+
+    public enum Stage {
+        DECODE, PREPROCESS, DETECT, COMPUTE, CONVERT, SEARCH, VOTE
+    }
+
+    static final Stage[] STAGES = Stage.values();
+    static final QueryTrace NONE = new QueryTrace(false, 0);
+
+    private final boolean enabled;
+    private final long deadline;
+    private volatile boolean cancelled;
+    private final long[] nanos = new long[STAGES.length];
+    private final long begin;
+    private long totalNanos;
+    private int stages;
+    private int keypoints, queries, noMatches;
+
+    QueryTrace() {
+        this(true, 0);
+    }
+
+    /**
+     * @param enabled whether to record the time of the stages
+     * @param deadline {@link System#nanoTime()} at which the query is
+     * aborted, 0 for none
+     */
+    QueryTrace(boolean enabled, long deadline) {
+        this.enabled = enabled;
+        this.deadline = deadline;
+        this.begin = enabled ? System.nanoTime() : 0;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Adds the time since {@code since} to the stage.
+     *
+     * @return the current time, to start the next stage with
+     */
+    long lap(Stage stage, long since) {
+        if (!enabled) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        nanos[stage.ordinal()] += now - since;
+        stages |= 1 << stage.ordinal();
+        return now;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /**
+     * Called between stages to abort a query that was cancelled or ran past
+     * its deadline.
+     *
+     * @throws CancellationException if so
+     */
+    void checkpoint() {
+        if (cancelled) {
+            throw new CancellationException("Query cancelled");
+        }
+        if (isExpired()) {
+            throw new CancellationException("Query deadline exceeded");
+        }
+    }
+
+    void addKeypoints(int count) {
+        if (enabled) {
+            keypoints += count;
+        }
+    }
+
+    void finish(int match) {
+        if (enabled) {
+            queries = 1;
+            noMatches = match == ImageClassifier.NO_MATCH ? 1 : 0;
+            totalNanos = System.nanoTime() - begin;
+        }
+    }
+
+    void finish(int[] matches) {
+        if (enabled) {
+            queries = matches.length;
+            noMatches = (int) Arrays.stream(matches).filter((match) -> match == ImageClassifier.NO_MATCH).count();
+            totalNanos = System.nanoTime() - begin;
+        }
+    }
+
+    /**
+     * @return whether the stage ran at all, a stage can take less than a
+     * nanosecond of clock resolution
+     */
+    public boolean hasStage(Stage stage) {
+        return (stages & 1 << stage.ordinal()) != 0;
+    }
+
+    public long getNanos(Stage stage) {
+        return nanos[stage.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public int getKeypoints() {
+        return keypoints;
+    }
+
+    /**
+     * @return 1, or the number of images of a batch
+     */
+    public int getQueries() {
+        return queries;
+    }
+
+    public int getNoMatches() {
+        return noMatches;
+    }
+
+}
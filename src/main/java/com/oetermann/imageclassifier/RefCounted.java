@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference count for native resources shared between threads. The creator
+ * holds the first reference; {@link #free()} runs once the last holder
+ * disposes its reference.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+abstract class RefCounted {
+
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    /**
+     * @return false if the resource has already been freed
+     */
+    boolean retain() {
+        for (;;) {
+            int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void dispose() {
+        if (references.decrementAndGet() == 0) {
+            free();
+        }
+    }
+
+    protected abstract void free();
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import org.opencv.core.Mat;
+
+/**
+ * One immutable generation of a matcher: a main segment plus small delta
+ * segments added since the last merge, the names of all images and the
+ * images that have been removed. Image indices are never reused, so an index
+ * returned by one generation names the same image in every later one.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class SegmentedIndex extends RefCounted implements DescriptorIndex {
+
+    static final class Segment extends RefCounted {
+
+        final DescriptorIndex index;
+        final int[] imageIds;
+
+        Segment(DescriptorIndex index, int[] imageIds) {
+            this.index = index;
+            this.imageIds = imageIds;
+        }
+
+        @Override
+        protected void free() {
+            index.release();
+        }
+    }
+
+    final Segment[] segments;
+    final String[] imageNames;
+    final BitSet removed;
+
+    /**
+     * Takes over the references of the given segments.
+     */
+    SegmentedIndex(Segment[] segments, String[] imageNames, BitSet removed) {
+        this.segments = segments;
+        this.imageNames = imageNames;
+        this.removed = removed;
+    }
+
+    static SegmentedIndex of(DescriptorIndex index, String[] imageNames) {
+        int[] imageIds = new int[index.imageCount()];
+        for (int i = 0; i < imageIds.length; i++) {
+            imageIds[i] = i;
+        }
+        return new SegmentedIndex(new Segment[]{new Segment(index, imageIds)}, imageNames, new BitSet());
+    }
+
+    /**
+     * @return a new generation sharing this one's segments, with the segments
+     * retained for it
+     */
+    SegmentedIndex with(Segment[] segments, String[] imageNames, BitSet removed) {
+        for (Segment segment : segments) {
+            if (Arrays.asList(this.segments).contains(segment)) {
+                segment.retain();
+            }
+        }
+        return new SegmentedIndex(segments, imageNames, removed);
+    }
+
+    int deltaImages() {
+        int images = 0;
+        for (int i = 1; i < segments.length; i++) {
+            images += segments[i].imageIds.length;
+        }
+        return images;
+    }
+
+    @Override
+    public int imageCount() {
+        return imageNames.length;
+    }
+
+    @Override
+    public int descriptorCount() {
+        int descriptors = 0;
+        for (Segment segment : segments) {
+            descriptors += segment.index.descriptorCount();
+        }
+        return descriptors;
+    }
+
+    @Override
+    public boolean scoresWholeQuery() {
+        for (Segment segment : segments) {
+            if (segment.index.scoresWholeQuery()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * With several segments every query row keeps only the nearest of the
+     * segments' matches, so votes are the same as with one merged index.
+     */
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        if (segments.length == 1) {
+            Segment segment = segments[0];
+            segment.index.match(queryDescriptors, (queryRow, image, weight) -> {
+                int id = segment.imageIds[image];
+                if (!removed.get(id)) {
+                    collector.collect(queryRow, id, weight);
+                }
+            }, trace);
+            return;
+        }
+        int rows = queryDescriptors.rows();
+        QueryScratch scratch = QueryScratch.forThread();
+        int[] bestImage = scratch.ints(rows);
+        double[] bestWeight = scratch.doubles(rows);
+        Arrays.fill(bestImage, 0, rows, -1);
+        for (Segment segment : segments) {
+            segment.index.match(queryDescriptors, (queryRow, image, weight) -> {
+                int id = segment.imageIds[image];
+                if (!removed.get(id) && (bestImage[queryRow] < 0 || weight > bestWeight[queryRow])) {
+                    bestImage[queryRow] = id;
+                    bestWeight[queryRow] = weight;
+                }
+            }, trace);
+        }
+        for (int row = 0; row < rows; row++) {
+            if (bestImage[row] >= 0) {
+                collector.collect(row, bestImage[row], bestWeight[row]);
+            }
+        }
+    }
+
+    @Override
+    public long memoryUsage() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.index.memoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the descriptors of every image by image index, empty for removed
+     * images
+     */
+    @Override
+    public List<Mat> trainDescriptors() {
+        Mat[] descriptors = new Mat[imageNames.length];
+        for (Segment segment : segments) {
+            List<Mat> segmentDescriptors = segment.index.trainDescriptors();
+            for (int i = 0; i < segmentDescriptors.size(); i++) {
+                int id = segment.imageIds[i];
+                if (removed.get(id)) {
+                    segmentDescriptors.get(i).release();
+                } else {
+                    descriptors[id] = segmentDescriptors.get(i);
+                }
+            }
+        }
+        for (int i = 0; i < descriptors.length; i++) {
+            if (descriptors[i] == null) {
+                descriptors[i] = new Mat();
+            }
+        }
+        return Arrays.asList(descriptors);
+    }
+
+    /**
+     * <pre>
+     * int images | images times UTF name | long[] removed | int segments
+     * segments times (int[] imageIds | byte index type | index)
+     * </pre>
+     * Arrays are written as their length followed by the elements.
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(imageNames.length);
+        for (String imageName : imageNames) {
+            out.writeUTF(imageName);
+        }
+        MatcherSnapshot.writeLongs(out, removed.toLongArray());
+        out.writeInt(segments.length);
+        for (Segment segment : segments) {
+            MatcherSnapshot.writeInts(out, segment.imageIds);
+            MatcherSnapshot.writeIndex(out, segment.index);
+        }
+    }
+
+    static SegmentedIndex read(DataInputStream in) throws IOException {
+        String[] imageNames = new String[in.readInt()];
+        for (int i = 0; i < imageNames.length; i++) {
+            imageNames[i] = in.readUTF();
+        }
+        BitSet removed = BitSet.valueOf(MatcherSnapshot.readLongs(in));
+        Segment[] segments = new Segment[in.readInt()];
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                int[] imageIds = MatcherSnapshot.readInts(in);
+                segments[i] = new Segment(MatcherSnapshot.readIndex(in), imageIds);
+            }
+        } catch (IOException | RuntimeException ex) {
+            for (Segment segment : segments) {
+                if (segment != null) {
+                    segment.dispose();
+                }
+            }
+            throw ex;
+        }
+        return new SegmentedIndex(segments, imageNames, removed);
+    }
+
+    @Override
+    public void release() {
+        dispose();
+    }
+
+    @Override
+    protected void free() {
+        for (Segment segment : segments) {
+            segment.dispose();
+        }
+    }
+
+}
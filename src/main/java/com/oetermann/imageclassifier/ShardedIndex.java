@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import org.opencv.core.Mat;
+
+/**
+ * Splits the training images into shards with an index each, built in
+ * parallel and searched in parallel. Every query row keeps the nearest of the
+ * shards' matches, exactly like one index over all images would, before any
+ * votes are counted, so minMatches decisions do not change. Shards are
+ * balanced by descriptor count.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class ShardedIndex implements DescriptorIndex {
+
+    private static final ExecutorService SHARD_EXECUTOR = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), (runnable) -> {
+                Thread thread = new Thread(runnable, "ShardedIndex-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final DescriptorIndex[] shards;
+    private final int[][] imageIds;
+    private final int images, descriptors;
+
+    /**
+     * @param create builds the index of one shard from its images'
+     * descriptors
+     */
+    ShardedIndex(List<Mat> descriptorsPerImage, int shardCount, Function<List<Mat>, DescriptorIndex> create) {
+        int nonEmpty = (int) descriptorsPerImage.stream().filter((descriptor) -> !descriptor.empty()).count();
+        int[][] partition = partition(descriptorsPerImage, Math.max(1, Math.min(shardCount, nonEmpty)));
+        List<Callable<DescriptorIndex>> builds = new ArrayList<>();
+        for (int[] shardImages : partition) {
+            List<Mat> shardDescriptors = new ArrayList<>(shardImages.length);
+            for (int image : shardImages) {
+                shardDescriptors.add(descriptorsPerImage.get(image));
+            }
+            builds.add(() -> create.apply(shardDescriptors));
+        }
+        this.shards = invokeAll(builds).toArray(new DescriptorIndex[partition.length]);
+        this.imageIds = partition;
+        this.images = descriptorsPerImage.size();
+        this.descriptors = Arrays.stream(shards).mapToInt(DescriptorIndex::descriptorCount).sum();
+    }
+
+    private ShardedIndex(DescriptorIndex[] shards, int[][] imageIds, int images) {
+        this.shards = shards;
+        this.imageIds = imageIds;
+        this.images = images;
+        this.descriptors = Arrays.stream(shards).mapToInt(DescriptorIndex::descriptorCount).sum();
+    }
+
+    /**
+     * Hands the largest remaining image to the shard with the fewest
+     * descriptors, so every shard gets a non-empty image first. Image ids
+     * within a shard stay ascending.
+     */
+    static int[][] partition(List<Mat> descriptorsPerImage, int shardCount) {
+        Integer[] order = new Integer[descriptorsPerImage.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(descriptorsPerImage.get(b).rows(), descriptorsPerImage.get(a).rows()));
+        long[] load = new long[shardCount];
+        int[] shardOf = new int[order.length];
+        int[] sizes = new int[shardCount];
+        for (int image : order) {
+            int lightest = 0;
+            for (int shard = 1; shard < shardCount; shard++) {
+                if (load[shard] < load[lightest] || (load[shard] == load[lightest] && sizes[shard] < sizes[lightest])) {
+                    lightest = shard;
+                }
+            }
+            shardOf[image] = lightest;
+            load[lightest] += descriptorsPerImage.get(image).rows();
+            sizes[lightest]++;
+        }
+        int[][] partition = new int[shardCount][];
+        for (int shard = 0; shard < shardCount; shard++) {
+            partition[shard] = new int[sizes[shard]];
+            sizes[shard] = 0;
+        }
+        for (int image = 0; image < shardOf.length; image++) {
+            partition[shardOf[image]][sizes[shardOf[image]]++] = image;
+        }
+        return partition;
+    }
+
+    private static <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (int i = 1; i < tasks.size(); i++) {
+            futures.add(SHARD_EXECUTOR.submit(tasks.get(i)));
+        }
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            results.add(tasks.get(0).call()); // the calling thread takes the first shard
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            futures.stream().forEach((future) -> {
+                future.cancel(true);
+            });
+            throw new IllegalStateException("Interrupted while waiting for shards", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Shard failed", ex.getCause());
+        } catch (Exception ex) {
+            throw new IllegalStateException("Shard failed", ex);
+        }
+        return results;
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+
+    DescriptorIndex shard(int shard) {
+        return shards[shard];
+    }
+
+    @Override
+    public boolean scoresWholeQuery() {
+        return Arrays.stream(shards).anyMatch(DescriptorIndex::scoresWholeQuery);
+    }
+
+    @Override
+    public int imageCount() {
+        return images;
+    }
+
+    @Override
+    public int descriptorCount() {
+        return descriptors;
+    }
+
+    /**
+     * Shards record nothing in the trace as they run on other threads, the
+     * whole fan out counts as search.
+     */
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        int rows = queryDescriptors.rows();
+        if (rows == 0) {
+            return;
+        }
+        long start = trace.start();
+        QueryScratch scratch = QueryScratch.forThread();
+        int[] bestImage = scratch.shardImages(rows * shards.length);
+        double[] bestWeight = scratch.shardWeights(rows * shards.length);
+        Arrays.fill(bestImage, 0, rows * shards.length, -1);
+        List<Callable<Void>> searches = new ArrayList<>(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            int offset = shard * rows;
+            int[] ids = imageIds[shard];
+            DescriptorIndex index = shards[shard];
+            searches.add(() -> {
+                index.match(queryDescriptors, (queryRow, image, weight) -> {
+                    bestImage[offset + queryRow] = ids[image];
+                    bestWeight[offset + queryRow] = weight;
+                }, QueryTrace.NONE);
+                return null;
+            });
+        }
+        invokeAll(searches);
+        start = trace.lap(Stage.SEARCH, start);
+        for (int row = 0; row < rows; row++) {
+            int image = -1;
+            double weight = 0;
+            for (int offset = row; offset < rows * shards.length; offset += rows) {
+                int candidate = bestImage[offset];
+                if (candidate >= 0 && (image < 0 || bestWeight[offset] > weight
+                        || (bestWeight[offset] == weight && candidate < image))) {
+                    image = candidate;
+                    weight = bestWeight[offset];
+                }
+            }
+            if (image >= 0) {
+                collector.collect(row, image, weight);
+            }
+        }
+        trace.lap(Stage.VOTE, start);
+    }
+
+    @Override
+    public List<Mat> trainDescriptors() {
+        Mat[] descriptorsPerImage = new Mat[images];
+        for (int shard = 0; shard < shards.length; shard++) {
+            List<Mat> shardDescriptors = shards[shard].trainDescriptors();
+            for (int i = 0; i < shardDescriptors.size(); i++) {
+                descriptorsPerImage[imageIds[shard][i]] = shardDescriptors.get(i);
+            }
+        }
+        for (int i = 0; i < descriptorsPerImage.length; i++) {
+            if (descriptorsPerImage[i] == null) {
+                descriptorsPerImage[i] = new Mat();
+            }
+        }
+        return Arrays.asList(descriptorsPerImage);
+    }
+
+    @Override
+    public long memoryUsage() {
+        return Arrays.stream(shards).mapToLong(DescriptorIndex::memoryUsage).sum();
+    }
+
+    /**
+     * <pre>
+     * int images | int shards | shards times (int[] imageIds | byte index type | index)
+     * </pre>
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(images);
+        out.writeInt(shards.length);
+        for (int shard = 0; shard < shards.length; shard++) {
+            MatcherSnapshot.writeInts(out, imageIds[shard]);
+            MatcherSnapshot.writeIndex(out, shards[shard]);
+        }
+    }
+
+    static ShardedIndex read(DataInputStream in) throws IOException {
+        int images = in.readInt();
+        DescriptorIndex[] shards = new DescriptorIndex[in.readInt()];
+        int[][] imageIds = new int[shards.length][];
+        try {
+            for (int shard = 0; shard < shards.length; shard++) {
+                imageIds[shard] = MatcherSnapshot.readInts(in);
+                shards[shard] = MatcherSnapshot.readIndex(in);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Arrays.stream(shards).filter((shard) -> shard != null).forEach((shard) -> {
+                shard.release();
+            });
+            throw ex;
+        }
+        return new ShardedIndex(shards, imageIds, images);
+    }
+
+    @Override
+    public void release() {
+        for (DescriptorIndex shard : shards) {
+            shard.release();
+        }
+    }
+
+}
@@ -17,18 +17,22 @@
 package com.oetermann.imageclassifier;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.opencv.core.CvType;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import org.opencv.core.Mat;
 
 /**
@@ -56,108 +60,99 @@ public interface Util {
     }
 
     public static List<String> listFiles(String path, boolean recursive, String... acceptedEndings) {
-        List<String> files = new ArrayList<>();
-        File file = new File(path);
-        if (file.isDirectory()) {
-            LinkedList<File> directories = new LinkedList<>();
-            directories.add(file);
-            while (!directories.isEmpty()) {
-                file = directories.poll();
-                for (File child : file.listFiles()) {
-                    if (child.isDirectory() && recursive) {
-                        directories.add(child);
-                    } else if (child.isFile()
-                            && (Arrays.stream(acceptedEndings).anyMatch(child.getName()::endsWith)
-                            || acceptedEndings.length == 0)) {
-                        files.add(child.getPath());
+        try (Stream<String> files = walkFiles(path, recursive, acceptedEndings)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Lazily lists the files below path, so a huge directory tree does not
+     * have to be held in memory. Directories are listed breadth-first,
+     * following symbolic links, one directory at a time.
+     *
+     * @return path itself if it is not a directory
+     */
+    public static Stream<String> walkFiles(String path, boolean recursive, String... acceptedEndings) {
+        File root = new File(path);
+        if (!root.isDirectory()) {
+            return Stream.of(path);
+        }
+        Iterator<String> files = new Iterator<String>() {
+            private final LinkedList<File> directories = new LinkedList<>(Collections.singletonList(root));
+            private final LinkedList<String> pending = new LinkedList<>();
+
+            @Override
+            public boolean hasNext() {
+                while (pending.isEmpty() && !directories.isEmpty()) {
+                    File directory = directories.poll();
+                    File[] children = directory.listFiles();
+                    if (children == null) {
+                        System.err.println("ERROR: Could not list files in: " + directory);
+                        continue;
                     }
+                    for (File child : children) {
+                        if (child.isDirectory() && recursive) {
+                            directories.add(child);
+                        } else if (child.isFile()
+                                && (Arrays.stream(acceptedEndings).anyMatch(child.getName()::endsWith)
+                                || acceptedEndings.length == 0)) {
+                            pending.add(child.getPath());
+                        }
+                    }
+                }
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
                 }
+                return pending.poll();
             }
-        } else {
-            files.add(path);
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(files, Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Fast non-cryptographic 64 bit hash of the data, eight bytes per step.
+     */
+    public static long hash64(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        long hash = 0x9E3779B97F4A7C15L ^ data.length;
+        while (buffer.remaining() >= 8) {
+            hash = Long.rotateLeft(hash ^ (buffer.getLong() * 0xC2B2AE3D27D4EB4FL), 31) * 0x9E3779B97F4A7C15L;
+        }
+        while (buffer.hasRemaining()) {
+            hash = (hash ^ (buffer.get() & 0xFF)) * 0x100000001B3L;
         }
-        return files;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static boolean saveMat(String path, Mat mat) {
+        return saveMat(path, mat, null);
     }
 
-    public static void saveMat(String path, Mat mat) {
+    public static boolean saveMat(String path, Mat mat, Quantization storage) {
         File file = new File(path).getAbsoluteFile();
         file.getParentFile().mkdirs();
         try {
-            int rows = mat.rows();
-            int cols = mat.cols();
-            int type = mat.type();
-            Object data;
-            switch (mat.type()) {
-                case CvType.CV_8S:
-                case CvType.CV_8U:
-                    data = new byte[(int) mat.total() * mat.channels()];
-                    mat.get(0, 0, (byte[]) data);
-                    break;
-                case CvType.CV_16S:
-                case CvType.CV_16U:
-                    data = new short[(int) mat.total() * mat.channels()];
-                    mat.get(0, 0, (short[]) data);
-                    break;
-                case CvType.CV_32S:
-                    data = new int[(int) mat.total() * mat.channels()];
-                    mat.get(0, 0, (int[]) data);
-                    break;
-                case CvType.CV_32F:
-                    data = new float[(int) mat.total() * mat.channels()];
-                    mat.get(0, 0, (float[]) data);
-                    break;
-                case CvType.CV_64F:
-                    data = new double[(int) mat.total() * mat.channels()];
-                    mat.get(0, 0, (double[]) data);
-                    break;
-                default:
-                    data = null;
-            }
-            try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(path))) {
-                oos.writeObject(rows);
-                oos.writeObject(cols);
-                oos.writeObject(type);
-                oos.writeObject(data);
-                oos.close();
-            }
-        } catch (IOException | ClassCastException ex) {
+            DescriptorIO.write(file.getPath(), mat, storage);
+            return true;
+        } catch (IOException | IllegalArgumentException ex) {
             System.err.println("ERROR: Could not save mat to file: " + path);
 //            Logger.getLogger(ImageClassifier.class.getName()).log(Level.SEVERE, null, ex);
         }
+        return false;
     }
 
     public static Mat loadMat(String path) {
         try {
-            int rows, cols, type;
-            Object data;
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(path))) {
-                rows = (int) ois.readObject();
-                cols = (int) ois.readObject();
-                type = (int) ois.readObject();
-                data = ois.readObject();
-            }
-            Mat mat = new Mat(rows, cols, type);
-            switch (type) {
-                case CvType.CV_8S:
-                case CvType.CV_8U:
-                    mat.put(0, 0, (byte[]) data);
-                    break;
-                case CvType.CV_16S:
-                case CvType.CV_16U:
-                    mat.put(0, 0, (short[]) data);
-                    break;
-                case CvType.CV_32S:
-                    mat.put(0, 0, (int[]) data);
-                    break;
-                case CvType.CV_32F:
-                    mat.put(0, 0, (float[]) data);
-                    break;
-                case CvType.CV_64F:
-                    mat.put(0, 0, (double[]) data);
-                    break;
-            }
-            return mat;
-        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            return DescriptorIO.read(path);
+        } catch (IOException ex) {
             System.err.println("ERROR: Could not load mat from file: " + path);
 //            Logger.getLogger(ImageClassifier.class.getName()).log(Level.SEVERE, null, ex);
         }
@@ -0,0 +1,703 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+import com.oetermann.imageclassifier.QueryTrace.Stage;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.TermCriteria;
+
+/**
+ * Bag of visual words retrieval (Nister and Stewenius, "Scalable Recognition
+ * with a Vocabulary Tree"). A tree of hierarchical k-means clusters turns
+ * every descriptor into a visual word, images are scored against the query by
+ * the L1 distance of their TF-IDF weighted word histograms using an inverted
+ * file, so a query only touches the images sharing its words. Binary
+ * descriptors are clustered bit by bit and compared by Hamming distance.
+ * <p>
+ * Every query row votes for the highest scoring image among those containing
+ * its word, weighted by that image's score relative to the best image's. The
+ * best image thus gets one vote per shared descriptor and minMatches keeps
+ * its meaning.
+ * <p>
+ * Only the words of the training descriptors are kept, not the descriptors,
+ * and {@link #trainDescriptors()} returns the centers of the words. Merging
+ * images into the index therefore keeps the trained tree and only rebuilds
+ * the inverted file, see {@link #withImages(int[][])}; retrain from the
+ * original descriptors for a tree fitted to the new images.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class VocabularyTreeIndex implements DescriptorIndex {
+
+    static final int DEFAULT_BRANCHING = 10, DEFAULT_DEPTH = 5;
+    private static final int MAX_TRAINING_DESCRIPTORS = 50000, KMEANS_ITERATIONS = 10;
+    private static final long SEED = 0x5EEDL;
+
+    private final boolean binary;
+    private final int branching, depth, images, descriptors, cols, width;
+    /**
+     * Cluster centers by node, width floats each, or width longs of packed
+     * bits for binary descriptors. The root, node 0, has none.
+     */
+    private final float[] centers;
+    private final long[] binaryCenters;
+    /**
+     * Children of a node are consecutive, leaves have no first child.
+     */
+    private final int[] firstChild, childCount, wordOf, leafOf;
+    private final float[] idf;
+    private final int[][] postingImages;
+    private final float[][] postingWeights;
+    /**
+     * The sorted words of every training image.
+     */
+    private final int[][] imageWords;
+
+    VocabularyTreeIndex(List<Mat> descriptorsPerImage) {
+        this(descriptorsPerImage, DEFAULT_BRANCHING, DEFAULT_DEPTH);
+    }
+
+    VocabularyTreeIndex(List<Mat> descriptorsPerImage, int branching, int depth) {
+        int columns = 0, rows = 0;
+        boolean binaryDescriptors = true;
+        for (Mat descriptor : descriptorsPerImage) {
+            if (descriptor.empty()) {
+                continue;
+            }
+            if (columns != 0 && descriptor.cols() != columns) {
+                throw new IllegalArgumentException("Descriptors must be rows of equal length");
+            }
+            columns = descriptor.cols();
+            rows += descriptor.rows();
+            binaryDescriptors &= descriptor.depth() == CvType.CV_8U;
+        }
+        this.binary = binaryDescriptors;
+        this.branching = Math.max(2, branching);
+        this.depth = Math.max(1, depth);
+        this.images = descriptorsPerImage.size();
+        this.descriptors = rows;
+        this.cols = columns;
+        this.width = binary ? (cols + 7) / 8 : cols;
+
+        int trainingDims = binary ? cols * 8 : cols;
+        int sampleRows = Math.min(descriptors, MAX_TRAINING_DESCRIPTORS);
+        float[] sample = sample(descriptorsPerImage, sampleRows, trainingDims);
+        Tree tree = new Tree(trainingDims);
+        tree.add(new float[trainingDims]);
+        Deque<Integer> pendingNodes = new ArrayDeque<>();
+        Deque<int[]> pendingRows = new ArrayDeque<>();
+        pendingNodes.add(0);
+        pendingRows.add(IntStream.range(0, sampleRows).toArray());
+        while (!pendingNodes.isEmpty()) {
+            int node = pendingNodes.poll();
+            int[] nodeRows = pendingRows.poll();
+            if (tree.depth(node) >= this.depth || nodeRows.length < this.branching * 2) {
+                continue;
+            }
+            int[] labels = new int[nodeRows.length];
+            float[] clusterCenters = kmeans(sample, nodeRows, trainingDims, this.branching, labels);
+            int first = tree.split(node, this.branching, clusterCenters);
+            for (int child = 0; child < this.branching; child++) {
+                int count = 0;
+                for (int label : labels) {
+                    if (label == child) {
+                        count++;
+                    }
+                }
+                int[] childRows = new int[count];
+                for (int i = 0, j = 0; i < labels.length; i++) {
+                    if (labels[i] == child) {
+                        childRows[j++] = nodeRows[i];
+                    }
+                }
+                pendingNodes.add(first + child);
+                pendingRows.add(childRows);
+            }
+        }
+        firstChild = Arrays.copyOf(tree.firstChild, tree.nodes);
+        childCount = Arrays.copyOf(tree.childCount, tree.nodes);
+        wordOf = new int[tree.nodes];
+        leafOf = leaves(firstChild, wordOf);
+        int words = leafOf.length;
+        if (binary) {
+            centers = new float[0];
+            binaryCenters = new long[tree.nodes * width];
+            byte[] bits = new byte[cols];
+            for (int node = 1; node < tree.nodes; node++) {
+                Arrays.fill(bits, (byte) 0);
+                for (int bit = 0; bit < trainingDims; bit++) {
+                    if (tree.centers[node * trainingDims + bit] >= 0.5f) {
+                        bits[bit >>> 3] |= 1 << (bit & 7);
+                    }
+                }
+                HammingIndex.pack(bits, 0, cols, binaryCenters, node * width);
+            }
+        } else {
+            centers = Arrays.copyOf(tree.centers, tree.nodes * trainingDims);
+            binaryCenters = new long[0];
+        }
+
+        imageWords = new int[images][];
+        IntStream.range(0, images).parallel().forEach((image) -> {
+            imageWords[image] = words(descriptorsPerImage.get(image));
+        });
+        idf = new float[words];
+        postingImages = new int[words][];
+        postingWeights = new float[words][];
+        invertedFile(imageWords, idf, postingImages, postingWeights);
+    }
+
+    /**
+     * Shares the tree of the given index, with the postings of other images.
+     */
+    private VocabularyTreeIndex(VocabularyTreeIndex tree, int[][] imageWords) {
+        this.binary = tree.binary;
+        this.branching = tree.branching;
+        this.depth = tree.depth;
+        this.images = imageWords.length;
+        this.descriptors = Arrays.stream(imageWords).mapToInt((words) -> words.length).sum();
+        this.cols = tree.cols;
+        this.width = tree.width;
+        this.centers = tree.centers;
+        this.binaryCenters = tree.binaryCenters;
+        this.firstChild = tree.firstChild;
+        this.childCount = tree.childCount;
+        this.wordOf = tree.wordOf;
+        this.leafOf = tree.leafOf;
+        this.imageWords = imageWords;
+        idf = new float[leafOf.length];
+        postingImages = new int[leafOf.length][];
+        postingWeights = new float[leafOf.length][];
+        invertedFile(imageWords, idf, postingImages, postingWeights);
+    }
+
+    /**
+     * Fills the IDF and the postings of every word from the sorted words of
+     * every image.
+     */
+    private static void invertedFile(int[][] imageWords, float[] idf, int[][] postingImages, float[][] postingWeights) {
+        int words = idf.length;
+        int[] documentFrequency = new int[words];
+        int documents = 0;
+        for (int[] wordsOfImage : imageWords) {
+            documents += wordsOfImage.length > 0 ? 1 : 0;
+            for (int i = 0; i < wordsOfImage.length; i++) {
+                if (i == 0 || wordsOfImage[i] != wordsOfImage[i - 1]) {
+                    documentFrequency[wordsOfImage[i]]++;
+                }
+            }
+        }
+        for (int word = 0; word < words; word++) {
+            idf[word] = documentFrequency[word] > 0 ? (float) Math.log(documents / (double) documentFrequency[word]) : 0;
+        }
+        for (int word = 0; word < words; word++) {
+            postingImages[word] = new int[documentFrequency[word]];
+            postingWeights[word] = new float[documentFrequency[word]];
+        }
+        int[] filled = new int[words];
+        for (int image = 0; image < imageWords.length; image++) {
+            int[] wordsOfImage = imageWords[image];
+            double norm = 0;
+            for (int word : wordsOfImage) {
+                norm += idf[word];
+            }
+            for (int i = 0; i < wordsOfImage.length;) {
+                int word = wordsOfImage[i], count = 0;
+                for (; i < wordsOfImage.length && wordsOfImage[i] == word; i++) {
+                    count++;
+                }
+                postingImages[word][filled[word]] = image;
+                postingWeights[word][filled[word]++] = norm > 0 ? (float) (count * idf[word] / norm) : 0;
+            }
+        }
+    }
+
+    private VocabularyTreeIndex(boolean binary, int branching, int depth, int cols, float[] centers, long[] binaryCenters,
+            int[] firstChild, int[] childCount, float[] idf, int[][] postingImages, float[][] postingWeights, int[][] imageWords) {
+        this.binary = binary;
+        this.branching = branching;
+        this.depth = depth;
+        this.images = imageWords.length;
+        this.descriptors = Arrays.stream(imageWords).mapToInt((words) -> words.length).sum();
+        this.cols = cols;
+        this.width = binary ? (cols + 7) / 8 : cols;
+        this.centers = centers;
+        this.binaryCenters = binaryCenters;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+        this.wordOf = new int[firstChild.length];
+        this.leafOf = leaves(firstChild, wordOf);
+        this.idf = idf;
+        this.postingImages = postingImages;
+        this.postingWeights = postingWeights;
+        this.imageWords = imageWords;
+    }
+
+    /**
+     * Numbers the leaves as words in node order.
+     *
+     * @param wordOf filled with the word of every node, -1 for inner nodes
+     * @return the leaf node of every word
+     */
+    private static int[] leaves(int[] firstChild, int[] wordOf) {
+        int words = 0;
+        for (int node = 0; node < firstChild.length; node++) {
+            wordOf[node] = firstChild[node] < 0 ? words++ : -1;
+        }
+        int[] leafOf = new int[words];
+        for (int node = 0; node < firstChild.length; node++) {
+            if (wordOf[node] >= 0) {
+                leafOf[wordOf[node]] = node;
+            }
+        }
+        return leafOf;
+    }
+
+    /**
+     * Growing arrays of the nodes while the tree is trained.
+     */
+    private static final class Tree {
+
+        private final int dims;
+        private float[] centers = new float[0];
+        private int[] firstChild = new int[0], childCount = new int[0], depth = new int[0];
+        private int nodes;
+
+        Tree(int dims) {
+            this.dims = dims;
+        }
+
+        int add(float[] center) {
+            if (nodes == firstChild.length) {
+                int capacity = Math.max(16, nodes * 2);
+                centers = Arrays.copyOf(centers, capacity * dims);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                childCount = Arrays.copyOf(childCount, capacity);
+                depth = Arrays.copyOf(depth, capacity);
+            }
+            System.arraycopy(center, 0, centers, nodes * dims, dims);
+            firstChild[nodes] = -1;
+            return nodes++;
+        }
+
+        int depth(int node) {
+            return depth[node];
+        }
+
+        /**
+         * @return the first of the new children
+         */
+        int split(int node, int children, float[] childCenters) {
+            int first = nodes;
+            for (int child = 0; child < children; child++) {
+                int id = add(Arrays.copyOfRange(childCenters, child * dims, (child + 1) * dims));
+                depth[id] = depth[node] + 1;
+            }
+            firstChild[node] = first;
+            childCount[node] = children;
+            return first;
+        }
+    }
+
+    /**
+     * Reservoir sample of the training descriptors as floats, one per bit for
+     * binary descriptors.
+     */
+    private float[] sample(List<Mat> descriptorsPerImage, int sampleRows, int dims) {
+        float[] sample = new float[sampleRows * dims];
+        Random random = new Random(SEED);
+        int seen = 0;
+        for (Mat descriptor : descriptorsPerImage) {
+            if (descriptor.empty()) {
+                continue;
+            }
+            float[] data = trainingFloats(descriptor);
+            for (int row = 0; row < descriptor.rows(); row++, seen++) {
+                int slot = seen < sampleRows ? seen : random.nextInt(seen + 1);
+                if (slot < sampleRows) {
+                    System.arraycopy(data, row * dims, sample, slot * dims, dims);
+                }
+            }
+        }
+        return sample;
+    }
+
+    private float[] trainingFloats(Mat descriptor) {
+        if (binary) {
+            byte[] data = new byte[descriptor.rows() * cols];
+            descriptor.get(0, 0, data);
+            float[] bits = new float[data.length * 8];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = (data[i >>> 3] >>> (i & 7)) & 1;
+            }
+            return bits;
+        }
+        return floats(descriptor);
+    }
+
+    private static float[] floats(Mat descriptor) {
+        Mat source = descriptor;
+        if (descriptor.depth() != CvType.CV_32F) {
+            source = new Mat();
+            descriptor.convertTo(source, CvType.CV_32F);
+        }
+        float[] data = new float[descriptor.rows() * descriptor.cols()];
+        source.get(0, 0, data);
+        if (source != descriptor) {
+            source.release();
+        }
+        return data;
+    }
+
+    private static float[] kmeans(float[] sample, int[] rows, int dims, int k, int[] labels) {
+        Mat samples = new Mat(rows.length, dims, CvType.CV_32F);
+        Mat bestLabels = new Mat();
+        Mat clusterCenters = new Mat();
+        try {
+            float[] data = new float[rows.length * dims];
+            for (int i = 0; i < rows.length; i++) {
+                System.arraycopy(sample, rows[i] * dims, data, i * dims, dims);
+            }
+            samples.put(0, 0, data);
+            Core.kmeans(samples, k, bestLabels, new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, KMEANS_ITERATIONS, 1e-4),
+                    1, Core.KMEANS_PP_CENTERS, clusterCenters);
+            bestLabels.get(0, 0, labels);
+            float[] result = new float[k * dims];
+            clusterCenters.get(0, 0, result);
+            return result;
+        } finally {
+            samples.release();
+            bestLabels.release();
+            clusterCenters.release();
+        }
+    }
+
+    /**
+     * @return the sorted words of the descriptor's rows
+     */
+    int[] words(Mat descriptor) {
+        if (descriptor.empty()) {
+            return new int[0];
+        }
+        if (descriptor.cols() != cols || (descriptor.depth() == CvType.CV_8U) != binary) {
+            throw new IllegalArgumentException("Descriptors do not match the index: "
+                    + CvType.typeToString(descriptor.type()) + " with " + descriptor.cols() + " columns");
+        }
+        int[] words = new int[descriptor.rows()];
+        if (binary) {
+            byte[] data = new byte[descriptor.rows() * cols];
+            descriptor.get(0, 0, data);
+            long[] code = new long[width];
+            for (int row = 0; row < words.length; row++) {
+                HammingIndex.pack(data, row * cols, cols, code, 0);
+                words[row] = binaryWord(code, 0);
+            }
+        } else {
+            float[] data = floats(descriptor);
+            for (int row = 0; row < words.length; row++) {
+                words[row] = word(data, row * cols);
+            }
+        }
+        Arrays.sort(words);
+        return words;
+    }
+
+    private int word(float[] data, int offset) {
+        int node = 0;
+        while (firstChild[node] >= 0) {
+            int best = firstChild[node];
+            float bestDistance = Float.MAX_VALUE;
+            for (int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+                float distance = 0;
+                for (int j = 0; j < cols && distance < bestDistance; j++) {
+                    float difference = data[offset + j] - centers[child * cols + j];
+                    distance += difference * difference;
+                }
+                if (distance < bestDistance) {
+                    best = child;
+                    bestDistance = distance;
+                }
+            }
+            node = best;
+        }
+        return wordOf[node];
+    }
+
+    private int binaryWord(long[] code, int offset) {
+        int node = 0;
+        while (firstChild[node] >= 0) {
+            int best = firstChild[node];
+            int bestDistance = Integer.MAX_VALUE;
+            for (int child = firstChild[node]; child < firstChild[node] + childCount[node]; child++) {
+                int distance = 0;
+                for (int i = 0; i < width; i++) {
+                    distance += Long.bitCount(code[offset + i] ^ binaryCenters[child * width + i]);
+                }
+                if (distance < bestDistance) {
+                    best = child;
+                    bestDistance = distance;
+                }
+            }
+            node = best;
+        }
+        return wordOf[node];
+    }
+
+    int branching() {
+        return branching;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    int wordCount() {
+        return idf.length;
+    }
+
+    /**
+     * @return the sorted words of a training image
+     */
+    int[] imageWords(int image) {
+        return imageWords[image];
+    }
+
+    /**
+     * @param imageWords the sorted words of every image, see
+     * {@link #words(Mat)}
+     * @return an index of the images using this index's tree, without
+     * clustering again
+     */
+    VocabularyTreeIndex withImages(int[][] imageWords) {
+        return new VocabularyTreeIndex(this, imageWords);
+    }
+
+    @Override
+    public int imageCount() {
+        return images;
+    }
+
+    @Override
+    public int descriptorCount() {
+        return descriptors;
+    }
+
+    @Override
+    public boolean scoresWholeQuery() {
+        return true;
+    }
+
+    /**
+     * The scratch ints hold the words of the query rows, the same sorted and
+     * the images touched by the query, whose scores accumulate in the scratch
+     * doubles. Those are all zero again when this returns.
+     */
+    @Override
+    public void match(Mat queryDescriptors, MatchCollector collector, QueryTrace trace) {
+        if (queryDescriptors.empty() || descriptors == 0) {
+            return;
+        }
+        if (queryDescriptors.cols() != cols || (queryDescriptors.depth() == CvType.CV_8U) != binary) {
+            throw new IllegalArgumentException("Query descriptors do not match the index: "
+                    + CvType.typeToString(queryDescriptors.type()) + " with " + queryDescriptors.cols() + " columns");
+        }
+        QueryScratch scratch = QueryScratch.forThread();
+        long start = trace.start();
+        int rows = queryDescriptors.rows();
+        int[] ints = scratch.vocabularyInts(2 * rows + images);
+        double[] scores = scratch.vocabularyScores(images);
+        if (binary) {
+            byte[] data = scratch.bytes(rows * cols);
+            queryDescriptors.get(0, 0, data);
+            long[] code = scratch.longs(width);
+            for (int row = 0; row < rows; row++) {
+                HammingIndex.pack(data, row * cols, cols, code, 0);
+                ints[row] = binaryWord(code, 0);
+            }
+        } else {
+            Mat query = queryDescriptors;
+            if (query.depth() != CvType.CV_32F) {
+                queryDescriptors.convertTo(scratch.converted, CvType.CV_32F);
+                query = scratch.converted;
+            }
+            float[] data = scratch.floats(rows * cols);
+            query.get(0, 0, data);
+            for (int row = 0; row < rows; row++) {
+                ints[row] = word(data, row * cols);
+            }
+        }
+        System.arraycopy(ints, 0, ints, rows, rows);
+        Arrays.sort(ints, rows, 2 * rows);
+        double norm = 0;
+        for (int i = rows; i < 2 * rows; i++) {
+            norm += idf[ints[i]];
+        }
+        int touched = 0;
+        for (int i = rows; i < 2 * rows && norm > 0;) {
+            int word = ints[i], count = 0;
+            for (; i < 2 * rows && ints[i] == word; i++) {
+                count++;
+            }
+            if (idf[word] == 0) {
+                continue;
+            }
+            double weight = count * idf[word] / norm;
+            int[] postedImages = postingImages[word];
+            float[] postedWeights = postingWeights[word];
+            for (int p = 0; p < postedImages.length; p++) {
+                int image = postedImages[p];
+                if (scores[image] == 0) {
+                    ints[2 * rows + touched++] = image;
+                }
+                scores[image] += Math.abs(weight - postedWeights[p]) - weight - postedWeights[p];
+            }
+        }
+        double bestScore = 0;
+        for (int t = 0; t < touched; t++) {
+            bestScore = Math.min(bestScore, scores[ints[2 * rows + t]]);
+        }
+        start = trace.lap(Stage.SEARCH, start);
+        for (int row = 0; row < rows && bestScore < 0; row++) {
+            int word = ints[row];
+            if (idf[word] == 0) {
+                continue;
+            }
+            int best = -1;
+            for (int image : postingImages[word]) {
+                if (best < 0 || scores[image] < scores[best]) {
+                    best = image;
+                }
+            }
+            if (best >= 0) {
+                collector.collect(row, best, scores[best] / bestScore);
+            }
+        }
+        for (int t = 0; t < touched; t++) {
+            scores[ints[2 * rows + t]] = 0;
+        }
+        trace.lap(Stage.VOTE, start);
+    }
+
+    /**
+     * @return the center of the word of every training descriptor, in the
+     * order of the words
+     */
+    @Override
+    public List<Mat> trainDescriptors() {
+        List<Mat> descriptorsPerImage = new ArrayList<>(images);
+        for (int[] words : imageWords) {
+            Mat descriptor = new Mat(words.length, cols, binary ? CvType.CV_8U : CvType.CV_32F);
+            if (words.length > 0 && binary) {
+                byte[] data = new byte[words.length * cols];
+                for (int row = 0; row < words.length; row++) {
+                    HammingIndex.unpack(binaryCenters, leafOf[words[row]] * width, data, row * cols, cols);
+                }
+                descriptor.put(0, 0, data);
+            } else if (words.length > 0) {
+                float[] data = new float[words.length * cols];
+                for (int row = 0; row < words.length; row++) {
+                    System.arraycopy(centers, leafOf[words[row]] * cols, data, row * cols, cols);
+                }
+                descriptor.put(0, 0, data);
+            }
+            descriptorsPerImage.add(descriptor);
+        }
+        return descriptorsPerImage;
+    }
+
+    @Override
+    public long memoryUsage() {
+        long usage = centers.length * 4L + binaryCenters.length * 8L + firstChild.length * 12L + idf.length * 4L;
+        for (int word = 0; word < postingImages.length; word++) {
+            usage += postingImages[word].length * 8L;
+        }
+        for (int[] words : imageWords) {
+            usage += words.length * 4L;
+        }
+        return usage;
+    }
+
+    /**
+     * <pre>
+     * boolean binary | int branching | int depth | int cols | float[] centers | long[] binaryCenters
+     * | int[] firstChild | int[] childCount | float[] idf | words times (int[] images | float[] weights)
+     * | int images | images times int[] words
+     * </pre>
+     */
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+        out.writeBoolean(binary);
+        out.writeInt(branching);
+        out.writeInt(depth);
+        out.writeInt(cols);
+        MatcherSnapshot.writeFloats(out, centers);
+        MatcherSnapshot.writeLongs(out, binaryCenters);
+        MatcherSnapshot.writeInts(out, firstChild);
+        MatcherSnapshot.writeInts(out, childCount);
+        MatcherSnapshot.writeFloats(out, idf);
+        for (int word = 0; word < idf.length; word++) {
+            MatcherSnapshot.writeInts(out, postingImages[word]);
+            MatcherSnapshot.writeFloats(out, postingWeights[word]);
+        }
+        out.writeInt(imageWords.length);
+        for (int[] words : imageWords) {
+            MatcherSnapshot.writeInts(out, words);
+        }
+    }
+
+    static VocabularyTreeIndex read(DataInputStream in) throws IOException {
+        boolean binary = in.readBoolean();
+        int branching = in.readInt();
+        int depth = in.readInt();
+        int cols = in.readInt();
+        float[] centers = MatcherSnapshot.readFloats(in);
+        long[] binaryCenters = MatcherSnapshot.readLongs(in);
+        int[] firstChild = MatcherSnapshot.readInts(in);
+        int[] childCount = MatcherSnapshot.readInts(in);
+        float[] idf = MatcherSnapshot.readFloats(in);
+        int[][] postingImages = new int[idf.length][];
+        float[][] postingWeights = new float[idf.length][];
+        for (int word = 0; word < idf.length; word++) {
+            postingImages[word] = MatcherSnapshot.readInts(in);
+            postingWeights[word] = MatcherSnapshot.readFloats(in);
+        }
+        int[][] imageWords = new int[in.readInt()][];
+        for (int image = 0; image < imageWords.length; image++) {
+            imageWords[image] = MatcherSnapshot.readInts(in);
+        }
+        return new VocabularyTreeIndex(binary, branching, depth, cols, centers, binaryCenters,
+                firstChild, childCount, idf, postingImages, postingWeights, imageWords);
+    }
+
+    @Override
+    public void release() {
+        // Lives on the Java heap
+    }
+
+}
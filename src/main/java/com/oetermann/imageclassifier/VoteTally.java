@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier;
+
+/**
+ * Per image vote accumulator. Only the touched entries are reset between
+ * queries, so the cost of a query does not grow with the number of images.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+final class VoteTally {
+
+    private static final ThreadLocal<VoteTally> SCRATCH = ThreadLocal.withInitial(VoteTally::new);
+
+    private double[] votes = new double[0];
+    private int[] touched = new int[0];
+    private int touchedCount;
+    private int images;
+
+    /**
+     * @return the calling thread's tally, cleared and sized for the given
+     * number of images
+     */
+    static VoteTally forThread(int images) {
+        VoteTally tally = SCRATCH.get();
+        tally.reset(images);
+        return tally;
+    }
+
+    void reset(int images) {
+        clear();
+        if (votes.length < images) {
+            votes = new double[images];
+            touched = new int[images];
+        }
+        this.images = images;
+    }
+
+    void clear() {
+        for (int i = 0; i < touchedCount; i++) {
+            votes[touched[i]] = 0;
+        }
+        touchedCount = 0;
+    }
+
+    void add(int image, double weight) {
+        if (weight <= 0) {
+            return;
+        }
+        if (votes[image] == 0) {
+            touched[touchedCount++] = image;
+        }
+        votes[image] += weight;
+    }
+
+    double votesOf(int image) {
+        return votes[image];
+    }
+
+    /**
+     * Whether more votes can still change the outcome of
+     * {@link #winner(int)}, given that every outstanding vote is at most 1.
+     *
+     * @param remaining number of votes still to be counted
+     */
+    boolean isDecided(int minMatches, int remaining) {
+        double best = 0, second = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            double imageVotes = votes[touched[i]];
+            if (imageVotes > best) {
+                second = best;
+                best = imageVotes;
+            } else if (imageVotes > second) {
+                second = imageVotes;
+            }
+        }
+        if (best + remaining < minMatches) {
+            return true;
+        }
+        return best >= minMatches && best - second > remaining;
+    }
+
+    /**
+     * @return the image with the most votes, the lowest index on ties, or -1
+     * if it has less than minMatches votes
+     */
+    int winner(int minMatches) {
+        if (images == 0) {
+            return -1;
+        }
+        int index = 0;
+        for (int i = 0; i < touchedCount; i++) {
+            int image = touched[i];
+            if (votes[image] > votes[index] || (votes[image] == votes[index] && image < index)) {
+                index = image;
+            }
+        }
+        if (votes[index] >= minMatches) {
+            return index;
+        }
+        return -1;
+    }
+
+}
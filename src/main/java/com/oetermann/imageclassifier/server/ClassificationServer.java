@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.server;
+
+import com.oetermann.imageclassifier.Histogram;
+import com.oetermann.imageclassifier.ImageClassifier;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Minimal HTTP front end for an {@link ImageClassifier} on the JDK's built-in
+ * server. Classification requests are micro-batched by a
+ * {@link MicroBatcher}.
+ * <pre>
+ * POST /classify/{matcher}[?minMatches=22]   body: encoded image
+ * POST /train/{matcher}[?recursive=true&amp;grayscale=false&amp;descriptors=false]
+ *                                            body: one server side path per line
+ * POST /reload/{matcher}                     body: server side snapshot file
+ * GET  /stats
+ * </pre>
+ * Responses are JSON, {@code "match":null} if no image matched. A full queue
+ * answers 503. Train and reload read files on the server and are disabled
+ * unless {@link #setAdminEnabled(boolean)} is set.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class ClassificationServer {
+
+    private final ImageClassifier imageClassifier;
+    private final InetSocketAddress address;
+    private long batchWindowMicros = 2000;
+    private int maxBatchSize = 16;
+    private int queueCapacity = 256;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int handlerThreads = 4;
+    private int maxBodyBytes = 32 << 20;
+    private int defaultMinMatches = 22;
+    private boolean adminEnabled;
+    private HttpServer server;
+    private ExecutorService handlers;
+    private MicroBatcher batcher;
+
+    public ClassificationServer(ImageClassifier imageClassifier, InetSocketAddress address) {
+        this.imageClassifier = imageClassifier;
+        this.address = address;
+    }
+
+    public ClassificationServer setBatchWindowMicros(long batchWindowMicros) {
+        this.batchWindowMicros = batchWindowMicros;
+        return this;
+    }
+
+    public ClassificationServer setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+        return this;
+    }
+
+    public ClassificationServer setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+        return this;
+    }
+
+    public ClassificationServer setWorkers(int workers) {
+        this.workers = workers;
+        return this;
+    }
+
+    public ClassificationServer setHandlerThreads(int handlerThreads) {
+        this.handlerThreads = Math.max(1, handlerThreads);
+        return this;
+    }
+
+    public ClassificationServer setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+        return this;
+    }
+
+    public ClassificationServer setDefaultMinMatches(int defaultMinMatches) {
+        this.defaultMinMatches = defaultMinMatches;
+        return this;
+    }
+
+    public ClassificationServer setAdminEnabled(boolean adminEnabled) {
+        this.adminEnabled = adminEnabled;
+        return this;
+    }
+
+    public synchronized void start() throws IOException {
+        if (server != null) {
+            return;
+        }
+        batcher = new MicroBatcher(imageClassifier, batchWindowMicros, maxBatchSize, queueCapacity, workers);
+        handlers = Executors.newFixedThreadPool(handlerThreads);
+        server = HttpServer.create(address, 0);
+        server.createContext("/classify/", this::classify);
+        server.createContext("/train/", this::train);
+        server.createContext("/reload/", this::reload);
+        server.createContext("/stats", this::stats);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests, waiting up to the given number of seconds for
+     * running ones.
+     */
+    public synchronized void stop(int delaySeconds) {
+        if (server == null) {
+            return;
+        }
+        server.stop(delaySeconds);
+        batcher.close();
+        handlers.shutdown();
+        server = null;
+    }
+
+    public InetSocketAddress getAddress() {
+        return server != null ? server.getAddress() : address;
+    }
+
+    public MicroBatcher getBatcher() {
+        return batcher;
+    }
+
+    private void classify(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, error("POST an image"));
+            return;
+        }
+        String matcherName = matcherName(exchange, "/classify/");
+        if (!imageClassifier.getMatcherNames().contains(matcherName)) {
+            respond(exchange, 404, error("Unknown matcher: " + matcherName));
+            return;
+        }
+        byte[] data = readBody(exchange);
+        if (data == null) {
+            return;
+        }
+        int minMatches;
+        try {
+            minMatches = Integer.parseInt(query(exchange).getOrDefault("minMatches", String.valueOf(defaultMinMatches)));
+        } catch (NumberFormatException ex) {
+            respond(exchange, 400, error("minMatches must be a number"));
+            return;
+        }
+        batcher.submit(matcherName, data, minMatches).whenComplete((name, failure) -> {
+            try {
+                if (failure == null) {
+                    String match = ImageClassifier.NO_MATCH_NAME.equals(name) ? "null" : json(name);
+                    respond(exchange, 200, "{\"matcher\":" + json(matcherName) + ",\"match\":" + match + "}");
+                } else if (failure instanceof RejectedExecutionException) {
+                    exchange.getResponseHeaders().set("Retry-After", "1");
+                    respond(exchange, 503, error(failure.getMessage()));
+                } else {
+                    respond(exchange, 500, error(String.valueOf(failure.getMessage())));
+                }
+            } catch (IOException ex) {
+                exchange.close();
+            }
+        });
+    }
+
+    private void train(HttpExchange exchange) throws IOException {
+        if (!checkAdmin(exchange)) {
+            return;
+        }
+        String matcherName = matcherName(exchange, "/train/");
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            return;
+        }
+        List<String> paths = Arrays.stream(new String(body, StandardCharsets.UTF_8).split("\r?\n"))
+                .map(String::trim).filter((path) -> !path.isEmpty()).collect(Collectors.toList());
+        Map<String, String> query = query(exchange);
+        boolean recursive = Boolean.parseBoolean(query.getOrDefault("recursive", "true"));
+        boolean grayscale = Boolean.parseBoolean(query.getOrDefault("grayscale", "false"));
+        try {
+            if (Boolean.parseBoolean(query.getOrDefault("descriptors", "false"))) {
+                imageClassifier.trainMatcherWithDescriptors(matcherName, recursive, paths);
+            } else {
+                imageClassifier.trainMatcher(matcherName, recursive, grayscale, paths);
+            }
+        } catch (RuntimeException ex) {
+            respond(exchange, 500, error("Training failed: " + ex.getMessage()));
+            return;
+        }
+        respond(exchange, 200, "{\"matcher\":" + json(matcherName) + ",\"trained\":true}");
+    }
+
+    private void reload(HttpExchange exchange) throws IOException {
+        if (!checkAdmin(exchange)) {
+            return;
+        }
+        String matcherName = matcherName(exchange, "/reload/");
+        byte[] body = readBody(exchange);
+        if (body == null) {
+            return;
+        }
+        String file = new String(body, StandardCharsets.UTF_8).trim();
+        if (imageClassifier.loadMatcher(matcherName, file)) {
+            respond(exchange, 200, "{\"matcher\":" + json(matcherName) + ",\"reloaded\":true}");
+        } else {
+            respond(exchange, 500, error("Could not load matcher from file: " + file));
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        Histogram batchSizes = batcher.getBatchSizes();
+        String matchers = imageClassifier.getMatcherNames().stream().map(ClassificationServer::json)
+                .collect(Collectors.joining(",", "[", "]"));
+        respond(exchange, 200, "{\"queueDepth\":" + batcher.getQueueDepth()
+                + ",\"queueCapacity\":" + batcher.getQueueCapacity()
+                + ",\"rejected\":" + batcher.getRejected()
+                + ",\"batches\":" + batchSizes.getCount()
+                + ",\"meanBatchSize\":" + batchSizes.getMean()
+                + ",\"p99BatchSize\":" + batchSizes.getPercentile(99)
+                + ",\"maxBatchSize\":" + batchSizes.getMax()
+                + ",\"matchers\":" + matchers + "}");
+    }
+
+    private boolean checkAdmin(HttpExchange exchange) throws IOException {
+        if (!adminEnabled) {
+            respond(exchange, 403, error("Admin endpoints are disabled"));
+            return false;
+        }
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, error("Use POST"));
+            return false;
+        }
+        return true;
+    }
+
+    private static String matcherName(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        return path.length() > prefix.length() ? path.substring(prefix.length()) : "";
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return the request body, or null after answering 413 if it is too
+     * large
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 << 10];
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                body.write(buffer, 0, read);
+                if (body.size() > maxBodyBytes) {
+                    respond(exchange, 413, error("Request body larger than " + maxBodyBytes + " bytes"));
+                    return null;
+                }
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String message) {
+        return "{\"error\":" + json(message) + "}";
+    }
+
+    static String json(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Starts a server on the given port, loading matchers saved with
+     * {@link ImageClassifier#saveMatcher}.
+     * <pre>
+     * java ... ClassificationServer port extractorType [name=snapshotFile ...]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: ClassificationServer port extractorType [name=snapshotFile ...]");
+            return;
+        }
+        ImageClassifier imageClassifier = new ImageClassifier(args[1]);
+        List<String> matchers = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            if (separator > 0 && imageClassifier.loadMatcher(args[i].substring(0, separator), args[i].substring(separator + 1))) {
+                matchers.add(args[i].substring(0, separator));
+            }
+        }
+        ClassificationServer server = new ClassificationServer(imageClassifier, new InetSocketAddress(Integer.parseInt(args[0])));
+        server.start();
+        System.out.println("Serving " + matchers + " on " + server.getAddress());
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 Lars Oetermann <lars.oetermann.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.oetermann.imageclassifier.server;
+
+import com.oetermann.imageclassifier.Histogram;
+import com.oetermann.imageclassifier.ImageClassifier;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects concurrent classification requests for the same matcher and
+ * minMatches for a short window and classifies them with one
+ * {@link ImageClassifier#matchNameBatch} call. A batch is dispatched when the
+ * window closes or it is full, whichever comes first. Requests beyond the
+ * queue capacity are rejected right away instead of piling up.
+ *
+ * @author Lars Oetermann <lars.oetermann.com>
+ */
+public class MicroBatcher implements Closeable {
+
+    private final ImageClassifier imageClassifier;
+    private final long windowMicros;
+    private final int maxBatchSize;
+    private final int queueCapacity;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers;
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final Histogram batchSizes = new Histogram();
+    private boolean closed;
+
+    /**
+     * @param windowMicros how long the first request of a batch waits for
+     * others
+     * @param maxBatchSize requests per batch
+     * @param queueCapacity requests waiting for a batch to start, more are
+     * rejected
+     * @param workers threads classifying batches
+     */
+    public MicroBatcher(ImageClassifier imageClassifier, long windowMicros, int maxBatchSize, int queueCapacity, int workers) {
+        this.imageClassifier = imageClassifier;
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.timer = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "MicroBatcher-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.workers = Executors.newFixedThreadPool(Math.max(1, workers), (runnable) -> {
+            Thread thread = new Thread(runnable, "MicroBatcher-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return the name of the best match, completed exceptionally with a
+     * {@link RejectedExecutionException} if the queue is full or the batcher
+     * is closed
+     */
+    public CompletableFuture<String> submit(String matcherName, byte[] data, int minMatches) {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            rejected.increment();
+            result.completeExceptionally(new RejectedExecutionException("Classification queue is full"));
+            return result;
+        }
+        String key = minMatches + ":" + matcherName;
+        Batch full = null;
+        synchronized (openBatches) {
+            if (closed) {
+                queued.decrementAndGet();
+                result.completeExceptionally(new RejectedExecutionException("Batcher closed"));
+                return result;
+            }
+            Batch batch = openBatches.get(key);
+            if (batch == null) {
+                batch = new Batch(key, matcherName, minMatches);
+                openBatches.put(key, batch);
+                Batch scheduled = batch;
+                timer.schedule(() -> {
+                    close(scheduled);
+                }, windowMicros, TimeUnit.MICROSECONDS);
+            }
+            batch.data.add(data);
+            batch.results.add(result);
+            if (batch.data.size() >= maxBatchSize) {
+                openBatches.remove(key);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+        return result;
+    }
+
+    private void close(Batch batch) {
+        synchronized (openBatches) {
+            if (openBatches.get(batch.key) != batch) {
+                return; // dispatched when it filled up
+            }
+            openBatches.remove(batch.key);
+        }
+        dispatch(batch);
+    }
+
+    private void dispatch(Batch batch) {
+        try {
+            workers.execute(() -> {
+                run(batch);
+            });
+        } catch (RejectedExecutionException ex) {
+            queued.addAndGet(-batch.data.size());
+            batch.results.stream().forEach((result) -> {
+                result.completeExceptionally(ex);
+            });
+        }
+    }
+
+    private void run(Batch batch) {
+        int size = batch.data.size();
+        queued.addAndGet(-size);
+        batchSizes.record(size);
+        try {
+            if (size == 1) {
+                batch.results.get(0).complete(imageClassifier.matchName(batch.matcherName, batch.data.get(0), batch.minMatches));
+                return;
+            }
+            String[] names = imageClassifier.matchNameBatch(batch.matcherName, batch.data, batch.minMatches);
+            for (int i = 0; i < size; i++) {
+                batch.results.get(i).complete(names[i]);
+            }
+        } catch (RuntimeException ex) {
+            batch.results.stream().forEach((result) -> {
+                result.completeExceptionally(ex);
+            });
+        }
+    }
+
+    /**
+     * @return requests admitted whose batch has not started yet
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * Fails the requests of batches that have not been dispatched yet and
+     * rejects new ones. Dispatched batches still complete.
+     */
+    @Override
+    public void close() {
+        synchronized (openBatches) {
+            closed = true;
+            openBatches.values().stream().forEach((batch) -> {
+                queued.addAndGet(-batch.data.size());
+                batch.results.stream().forEach((result) -> {
+                    result.completeExceptionally(new RejectedExecutionException("Batcher closed"));
+                });
+            });
+            openBatches.clear();
+        }
+        timer.shutdownNow();
+        workers.shutdown();
+    }
+
+    private static class Batch {
+
+        private final String key;
+        private final String matcherName;
+        private final int minMatches;
+        private final List<byte[]> data = new ArrayList<>();
+        private final List<CompletableFuture<String>> results = new ArrayList<>();
+
+        Batch(String key, String matcherName, int minMatches) {
+            this.key = key;
+            this.matcherName = matcherName;
+            this.minMatches = minMatches;
+        }
+    }
+
+}